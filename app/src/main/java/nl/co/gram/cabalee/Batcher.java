@@ -0,0 +1,136 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Packs frames bound for one link into BATCH_V1 frames, for links where each send is expensive
+ * whatever its size, like Nearby's.  Frames wait until the batch is full enough or the caller's
+ * deadline passes and it calls flush(); a batch of one goes out as the plain frame.
+ *
+ * Batch frame: [BATCH_V1] ([uint16 length] [frame])*, lengths big-endian.
+ */
+public class Batcher {
+    private static final Logger logger = Logger.getLogger("cabalee.batcher");
+    private static final int HEADER = 1;
+    private static final int LENGTH = 2;
+    private static final int LOG_EVERY = 1000;
+
+    public interface Sink {
+        void send(ByteString frame);
+    }
+
+    private final int maxBytes;
+    private final int flushBytes;
+    private final Sink sink;
+    private final List<ByteString> pending = new ArrayList<>();
+    private int pendingBytes = HEADER;
+    private long frames = 0;
+    private long sends = 0;
+
+    /** Batches up to maxBytes long, sent as soon as they reach flushBytes. */
+    public Batcher(int maxBytes, int flushBytes, Sink sink) {
+        Util.checkArgument(flushBytes <= maxBytes, "flushBytes must not exceed maxBytes");
+        this.maxBytes = maxBytes;
+        this.flushBytes = flushBytes;
+        this.sink = sink;
+    }
+
+    /**
+     * Queues frame, sending what's pending first if it wouldn't fit alongside.  Returns true if
+     * frame was left waiting on its own, in which case the caller should flush() after its deadline.
+     */
+    public synchronized boolean add(ByteString frame) {
+        frames++;
+        if (frames % LOG_EVERY == 0) {
+            logger.info(toString());
+        }
+        if (HEADER + LENGTH + frame.size() > maxBytes) {
+            flush();
+            send(frame);
+            return false;
+        }
+        if (pendingBytes + LENGTH + frame.size() > maxBytes) {
+            flush();
+        }
+        pending.add(frame);
+        pendingBytes += LENGTH + frame.size();
+        if (pendingBytes >= flushBytes) {
+            flush();
+            return false;
+        }
+        return pending.size() == 1;
+    }
+
+    /** Sends whatever's pending. */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (pending.size() == 1) {
+            send(pending.get(0));
+        } else {
+            byte[] batch = new byte[pendingBytes];
+            batch[0] = MsgType.BATCH_V1_VALUE;
+            int off = HEADER;
+            for (ByteString frame : pending) {
+                batch[off] = (byte) (frame.size() >>> 8);
+                batch[off + 1] = (byte) frame.size();
+                frame.copyTo(batch, off + LENGTH);
+                off += LENGTH + frame.size();
+            }
+            send(ByteString.copyFrom(batch));
+        }
+        pending.clear();
+        pendingBytes = HEADER;
+    }
+
+    private void send(ByteString frame) {
+        sends++;
+        sink.send(frame);
+    }
+
+    /** Splits a BATCH_V1 frame into the frames within, or returns null if it's malformed. */
+    public static List<ByteString> unpack(ByteString batch) {
+        if (batch.size() < HEADER || batch.byteAt(0) != MsgType.BATCH_V1_VALUE) {
+            return null;
+        }
+        List<ByteString> out = new ArrayList<>();
+        int off = HEADER;
+        while (off < batch.size()) {
+            if (off + LENGTH > batch.size()) {
+                return null;
+            }
+            int size = ((batch.byteAt(off) & 0xff) << 8) | (batch.byteAt(off + 1) & 0xff);
+            off += LENGTH;
+            if (size == 0 || off + size > batch.size()) {
+                return null;
+            }
+            out.add(batch.substring(off, off + size));
+            off += size;
+        }
+        return out;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "batcher: " + frames + " frames in " + sends + " sends, " + pending.size() + " pending";
+    }
+}
@@ -0,0 +1,233 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Produces the same boxes as Cabal.boxIt/unboxIt, but serializes, pads, signs and encrypts within
+ * per-thread scratch buffers, so each message allocates only its output (plus whatever the
+ * crypto primitives allocate internally).
+ *
+ * Cleartext layout within the box:
+ *   [signing type (1)] [public key (32)] [signed: [flags (1)] [padding] [payload]]
+ *
+ * The low seven bits of flags are the padding size, and the high bit is set if the payload is
+ * compressed (see Compression).  We open compressed boxes but don't send them yet.
+ */
+public class BoxCodec {
+    private static final Logger logger = Logger.getLogger("cabalee.boxcodec");
+    private static final int NONCE = CryptoProvider.NONCE_BYTES;
+    private static final int ZERO = CryptoProvider.ZERO_BYTES;
+    private static final int BOX_ZERO = CryptoProvider.BOX_ZERO_BYTES;
+    private static final int SIGNATURE = CryptoProvider.SIGNATURE_BYTES;
+    private static final int HEADER = 1 + Identity.PublicKey.SIZE;
+    static final int COMPRESSED = 0x80;
+    static final int PADDING_MASK = 0x7f;
+    // Scratch buffers bigger than this are dropped after use rather than kept for the thread.
+    private static final int MAX_RETAINED = 64 * 1024;
+
+    private static final AtomicLong messages = new AtomicLong();
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+
+    private static class Buffers {
+        final byte[] nonce = new byte[NONCE];
+        byte[] plain = new byte[0];
+        byte[] cipher = new byte[0];
+        byte[] scratch = new byte[0];
+
+        void ensure(int size) {
+            if (plain.length >= size) return;
+            plain = new byte[size];
+            cipher = new byte[size];
+            scratch = new byte[size];
+            allocatedBytes.addAndGet(3L * size);
+        }
+
+        void release() {
+            if (plain.length > MAX_RETAINED) {
+                plain = cipher = scratch = new byte[0];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            allocatedBytes.addAndGet(NONCE);
+            return new Buffers();
+        }
+    };
+
+    private static void count(long allocated) {
+        allocatedBytes.addAndGet(allocated);
+        long n = messages.incrementAndGet();
+        if (n % 1000 == 0) {
+            logger.info("boxed/unboxed " + n + " messages, " + allocatedBytesPerMessage() + " bytes allocated per message");
+        }
+    }
+
+    /** Average bytes allocated by the codec and its crypto provider for each message boxed or unboxed. */
+    public static long allocatedBytesPerMessage() {
+        long n = messages.get();
+        return n == 0 ? 0 : (allocatedBytes.get() + CryptoProvider.get().allocatedBytes()) / n;
+    }
+
+    public static ByteString boxIt(Payload payload, byte[] key, Identity identity) {
+        Buffers b = buffers.get();
+        try {
+            int payloadSize = payload.getSerializedSize();
+            int paddingSize = Cabal.paddingSize(payloadSize);
+            int toSignSize = 1 + paddingSize + payloadSize;
+            int plainSize = ZERO + HEADER + SIGNATURE + toSignSize;
+            b.ensure(NONCE + plainSize);  // enough to assemble the output in scratch
+
+            // Serialize and pad into scratch, then sign it into place after the header.
+            byte[] scratch = b.scratch;
+            scratch[0] = (byte) paddingSize;
+            Arrays.fill(scratch, 1, 1 + paddingSize, (byte) 0);
+            CodedOutputStream cos = CodedOutputStream.newInstance(scratch, 1 + paddingSize, payloadSize);
+            payload.writeTo(cos);
+            cos.checkNoSpaceLeft();
+            byte[] plain = b.plain;
+            Arrays.fill(plain, 0, ZERO, (byte) 0);
+            plain[ZERO] = (byte) identity.publicKey().signingType();
+            identity.publicKey().identity().copyTo(plain, ZERO + 1);
+            identity.signInto(scratch, 0, toSignSize, b.cipher);
+            System.arraycopy(b.cipher, 0, plain, ZERO + HEADER, toSignSize + SIGNATURE);
+
+            // Encrypt, then emit the nonce followed by the box.  The protobuf lite runtime can't
+            // wrap an array without copying it, so we assemble the output in scratch and copy once.
+            Util.randomBytes(b.nonce);
+            if (!CryptoProvider.get().secretbox(b.cipher, plain, plainSize, b.nonce, key)) {
+                throw new RuntimeException("secretbox failed");
+            }
+            int outSize = NONCE + plainSize - BOX_ZERO;
+            System.arraycopy(b.nonce, 0, scratch, 0, NONCE);
+            System.arraycopy(b.cipher, BOX_ZERO, scratch, NONCE, plainSize - BOX_ZERO);
+            count(outSize);
+            return ByteString.copyFrom(scratch, 0, outSize);
+        } catch (IOException e) {
+            throw new RuntimeException("serializing payload", e);
+        } finally {
+            b.release();
+        }
+    }
+
+    private static int boxSize(ByteString bytes) {
+        return BOX_ZERO + bytes.size() - NONCE;
+    }
+
+    // Unwraps the outer cabal encryption of bytes into plain, returning false if it isn't ours.
+    private static boolean decrypt(ByteString bytes, byte[] key, Buffers b, byte[] plain) {
+        int boxSize = boxSize(bytes);
+        bytes.substring(0, NONCE).copyTo(b.nonce, 0);
+        Arrays.fill(b.cipher, 0, BOX_ZERO, (byte) 0);
+        bytes.substring(NONCE).copyTo(b.cipher, BOX_ZERO);
+        if (!CryptoProvider.get().secretboxOpen(plain, b.cipher, boxSize, b.nonce, key)) {
+            logger.severe("failed to open box");
+            return false;
+        } else if (boxSize - ZERO < 128 + Identity.PublicKey.OVERHEAD) {
+            logger.severe("opened box too short: " + (boxSize - ZERO));
+            return false;
+        }
+        return true;
+    }
+
+    // Extracts the payload from plain[verified:verified+verifiedSize], verified being -1 if the
+    // signature didn't check out.
+    private static Message parse(byte[] plain, int verified, int verifiedSize, Identity.PublicKey from) {
+        if (verified < 0 || verifiedSize < (plain[verified] & PADDING_MASK) + 1) {
+            logger.severe("unable to verify box");
+            return null;
+        }
+        Payload payload;
+        try {
+            int skip = 1 + (plain[verified] & PADDING_MASK);
+            if ((plain[verified] & COMPRESSED) == 0) {
+                payload = Payload.parseFrom(CodedInputStream.newInstance(plain, verified + skip, verifiedSize - skip));
+            } else {
+                byte[] decompressed = Compression.decompress(plain, verified + skip, verifiedSize - skip);
+                if (decompressed == null) return null;
+                payload = Payload.parseFrom(decompressed);
+            }
+        } catch (Exception e) {
+            logger.severe("deserializing: " + e.getMessage());
+            return null;
+        }
+        return new Message(payload, from);
+    }
+
+    public static Message unboxIt(ByteString bytes, byte[] key) {
+        if (bytes.size() < NONCE + CryptoProvider.MAC_BYTES) {
+            logger.severe("payload too short");
+            return null;
+        }
+        Buffers b = buffers.get();
+        try {
+            int boxSize = boxSize(bytes);
+            b.ensure(boxSize);
+            byte[] plain = b.plain;
+            if (!decrypt(bytes, key, b, plain)) {
+                return null;
+            }
+
+            // Unwrap inner identity and verify
+            Identity.PublicKey from = PublicKeyCache.INSTANCE.get(plain, ZERO);
+            int signedSize = boxSize - ZERO - HEADER;
+            int verified = from.openInPlace(plain, ZERO + HEADER, signedSize);
+            Message m = parse(plain, verified, signedSize - SIGNATURE, from);
+            if (m != null) {
+                count(HEADER);  // the key cache lookup
+            }
+            return m;
+        } finally {
+            b.release();
+        }
+    }
+
+    /**
+     * Like unboxIt, but without checking the signature, for boxes that were verified when they
+     * arrived and have been kept since, such as those in a MessageLog.
+     */
+    public static Message reopen(ByteString bytes, byte[] key) {
+        if (bytes.size() < NONCE + CryptoProvider.MAC_BYTES) {
+            logger.severe("payload too short");
+            return null;
+        }
+        Buffers b = buffers.get();
+        try {
+            int boxSize = boxSize(bytes);
+            b.ensure(boxSize);
+            byte[] plain = b.plain;
+            if (!decrypt(bytes, key, b, plain)) {
+                return null;
+            }
+            Identity.PublicKey from = PublicKeyCache.INSTANCE.get(plain, ZERO);
+            // Signed data follows its signature; unsigned data is followed by zeros in its place.
+            int data = ZERO + HEADER + (from.signingType() == Identity.SIGNED ? SIGNATURE : 0);
+            return parse(plain, data, boxSize - ZERO - HEADER - SIGNATURE, from);
+        } finally {
+            b.release();
+        }
+    }
+}
@@ -16,6 +16,7 @@ package nl.co.gram.cabalee;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
@@ -23,24 +24,86 @@ import com.google.protobuf.ByteString;
 import com.iwebpp.crypto.TweetNaclFast;
 
 import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-public class Cabal {
+public class Cabal implements CommCenter.Opener {
     private static final Logger logger = Logger.getLogger("cabalee.receiver");
     private final byte[] key;
     private final Identity myID;
-    private final TweetNaclFast.SecretBox box;
     private final ByteString id;
     private final CommCenter commCenter;
     private String name;
-    private final IDSet ids = new IDSet(0, 1);
+    // Messages are accepted if sent within REPLAY_WINDOW_MILLIS of our clock, allowing for that much skew.
+    private static final long REPLAY_WINDOW_MILLIS = 30 * 60 * 1_000;
+    private static final int REPLAY_WINDOW_ENTRIES = 4096;
+    private final ReplayWindow ids;
     private final LocalBroadcastManager localBroadcastManager;
-    private final List<Message> messages = new ArrayList<>();
+    // Boxed messages are kept in a memory-mapped log rather than on the heap, and only the most
+    // recently read are kept opened.
+    private static final int LOG_SEGMENT_BYTES = 1024 * 1024;
+    private static final long LOG_MAX_BYTES = 16 * LOG_SEGMENT_BYTES;
+    private static final long LOG_MAX_AGE_MILLIS = 24 * 60 * 60 * 1_000;
+    private static final int OPENED_CACHE_ENTRIES = 256;
+    private final MessageLog log;
+    private final Map<Long, Message> opened = new LinkedHashMap<Long, Message>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Message> eldest) {
+            return size() > OPENED_CACHE_ENTRIES;
+        }
+    };
     private final CabalNotification notificationHandler;
+    private final CabalEvents events;
+    // Boxes too big for a frame go out as fragments, a few at a time so they don't swamp every
+    // link's send queue at once, and come back together in the reassembler.
+    private static final int FRAGMENTS_PER_TICK = 8;
+    private static final long FRAGMENT_TICK_MILLIS = 250;
+    private static final int MAX_REASSEMBLIES = 8;
+    private static final long REASSEMBLY_IDLE_MILLIS = 10 * 60 * 1_000;
+    private final Reassembler reassembler;
+    private final Handler handler;
+    // Transports are opened in parallel by CommCenter's workers, but delivered in arrival order.
+    private final Sequencer<Received> receiveOrder = new Sequencer<Received>() {
+        @Override
+        protected void deliver(Received r) {
+            Cabal.this.deliver(r.transport, r.message);
+        }
+    };
+
+    // Transports waiting to be opened, drained by at most CommCenter.openerThreads() workers at a
+    // time.
+    private final ConcurrentLinkedQueue<Pending> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger draining = new AtomicInteger();
+
+    private static class Pending {
+        final long seq;
+        final Transport transport;
+
+        Pending(long seq, Transport transport) {
+            this.seq = seq;
+            this.transport = transport;
+        }
+    }
+
+    private static class Received {
+        final Transport transport;
+        final Message message;
+
+        Received(Transport transport, Message message) {
+            this.transport = transport;
+            this.message = message;
+        }
+    }
 
     public String type() { return "receive"; }
 
@@ -48,11 +111,18 @@ public class Cabal {
         Util.checkArgument(key.length == TweetNaclFast.Box.secretKeyLength, "key wrong length");
         this.commCenter = commCenter;
         this.key = key;
-        this.box = new TweetNaclFast.SecretBox(key);
         this.id = idFor(key);
         this.name = Util.toTitle(this.id.toByteArray());
         this.localBroadcastManager = LocalBroadcastManager.getInstance(context);
+        this.events = new CabalEvents(context, id);
+        this.reassembler = new Reassembler(Reassembler.dir(context), MAX_REASSEMBLIES, REASSEMBLY_IDLE_MILLIS);
+        this.handler = new Handler(context.getMainLooper());
         this.notificationHandler = new CabalNotification(context, this);
+        commCenter.dispatcher().register(id, notificationHandler);
+        this.log = new MessageLog(MessageLog.dir(context), LOG_SEGMENT_BYTES, LOG_MAX_BYTES, LOG_MAX_AGE_MILLIS);
+        // Nothing about the cabal survives a restart, so the floor starts at the edge of the
+        // window: a sender's clock may be that far behind ours, and its messages still new to us.
+        this.ids = new ReplayWindow(REPLAY_WINDOW_MILLIS, REPLAY_WINDOW_ENTRIES, System.currentTimeMillis() - REPLAY_WINDOW_MILLIS);
         byte[] randomID = new byte[Identity.PublicKey.SIZE];
         Util.randomBytes(randomID);
         myID = new Identity(randomID);
@@ -68,6 +138,31 @@ public class Cabal {
         return ByteString.copyFrom(digest.digest(key));
     }
 
+    // Routing tags let a receiver find the cabal a transport belongs to with a single lookup,
+    // rather than trial-decrypting it with every cabal key it holds.  They're derived from the
+    // key and rotate every epoch, so they only link transports sent within the same epoch.
+    public static final int ROUTING_TAG_SIZE = 8;
+    public static final long ROUTING_EPOCH_MILLIS = 60 * 60 * 1_000;
+    private static final byte[] ROUTING_TAG_CONTEXT = "Cabalee routing tag".getBytes(StandardCharsets.UTF_8);
+
+    public static long routingEpoch(long millis) {
+        return millis / ROUTING_EPOCH_MILLIS;
+    }
+
+    public static ByteString routingTag(byte[] key, long epoch) {
+        MessageDigest digest = Util.sha256();
+        digest.update(ROUTING_TAG_CONTEXT);
+        digest.update(key);
+        for (int i = 0; i < 8; i++) {
+            digest.update((byte) (epoch >>> (i * 8)));
+        }
+        return ByteString.copyFrom(digest.digest(), 0, ROUTING_TAG_SIZE);
+    }
+
+    public ByteString routingTag(long epoch) {
+        return routingTag(key, epoch);
+    }
+
     public Identity myID() {
         return myID;
     }
@@ -91,6 +186,8 @@ public class Cabal {
         return paddingSize < minPadding ? minPadding : paddingSize;
     }
 
+    // boxIt and unboxIt are the reference implementation of the box format; the receive and
+    // send paths use BoxCodec, which produces the same boxes with far less copying.
     private static final ByteString paddingHelper = ByteString.copyFrom(new byte[128]);
     public static ByteString boxIt(Payload payload, TweetNaclFast.SecretBox box, Identity identity) {
         byte[] nonce = new byte[TweetNaclFast.SecretBox.nonceLength];
@@ -147,18 +244,24 @@ public class Cabal {
 
         // Unwrap inner identity and verify
         ByteString clear = ByteString.copyFrom(cleartext);
-        Identity.PublicKey key = new Identity.PublicKey(clear.byteAt(0), clear.substring(1, 1+ Identity.PublicKey.SIZE).toByteArray());
+        Identity.PublicKey key = PublicKeyCache.INSTANCE.get(cleartext, 0);
         byte[] verified = key.open(clear.substring(1+ Identity.PublicKey.SIZE).toByteArray());
-        if (verified == null || verified[0] < 0 || verified.length < verified[0]+1) {
+        if (verified == null || verified.length < (verified[0] & BoxCodec.PADDING_MASK)+1) {
             logger.severe("unable to verify box");
             return null;
         }
 
-        // Extract payload.
+        // Extract payload, decompressing it if the flag says so.
         Payload payload;
         try {
-            ByteString serializedPayload = ByteString.copyFrom(verified).substring(1+(int)verified[0]);
-            payload = Payload.parseFrom(serializedPayload);
+            int skip = 1 + (verified[0] & BoxCodec.PADDING_MASK);
+            if ((verified[0] & BoxCodec.COMPRESSED) != 0) {
+                byte[] decompressed = Compression.decompress(verified, skip, verified.length - skip);
+                if (decompressed == null) return null;
+                payload = Payload.parseFrom(decompressed);
+            } else {
+                payload = Payload.parseFrom(ByteString.copyFrom(verified).substring(skip));
+            }
         } catch (Exception e) {
             logger.severe("deserializing: " + e.getMessage());
             return null;
@@ -177,13 +280,66 @@ public class Cabal {
     public ByteString id() { return id; }
 
     public void sendPayload(Payload payload, Identity identity) {
-        ByteString boxed = boxIt(payload, box, identity);
-        ids.checkAndAdd(Util.transportID(boxed));
-        commCenter.broadcastTransport(boxed, null);
-        messageToReceivers(new Message(payload, identity.publicKey()));
+        if (!payload.hasSent()) {
+            payload = payload.toBuilder().setSent(Util.now()).build();
+        }
+        ByteString tag = routingTag(routingEpoch(System.currentTimeMillis()));
+        ByteString box = BoxCodec.boxIt(payload, key, identity);
+        if (box.size() > Fragments.MAX_BOX_BYTES) {
+            logger.severe("message too big to send: " + box.size() + " bytes");
+            return;
+        }
+        boolean fragmented = Fragments.needed(box);
+        Transport t = fragmented ? Transport.reassembled(box, null) : Transport.local(box, tag);
+        ids.checkAndAdd(t.boxID(), Util.toMillis(payload.getSent()), t.receivedMillis());
+        if (fragmented) {
+            sendFragments(Fragments.split(box, key), tag);
+        } else {
+            commCenter.broadcastTransport(t);
+        }
+        messageToReceivers(new Message(payload, identity.publicKey()), t.body());
+    }
+
+    private void sendFragments(final List<ByteString> fragments, final ByteString tag) {
+        logger.info("sending box in " + fragments.size() + " fragments");
+        handler.post(new Runnable() {
+            int next = 0;
+            @Override
+            public void run() {
+                for (int i = 0; i < FRAGMENTS_PER_TICK && next < fragments.size(); i++) {
+                    commCenter.broadcastTransport(Transport.fragment(fragments.get(next++), tag));
+                }
+                if (next < fragments.size()) {
+                    handler.postDelayed(this, FRAGMENT_TICK_MILLIS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a CABAL_FRAGMENT_V1 transport to its box, and once that's complete, opens and
+     * delivers it like any other.  Returns false if the fragment wasn't for this cabal.
+     */
+    public boolean handleFragment(Transport transport) {
+        Fragments.Fragment f = Fragments.open(transport.body(), key);
+        if (f == null) {
+            return false;
+        }
+        ByteString box;
+        try {
+            box = reassembler.add(f, transport.receivedMillis());
+        } catch (IOException e) {
+            logger.severe("reassembling: " + e.getMessage());
+            return true;
+        }
+        if (box != null) {
+            handleTransport(Transport.reassembled(box, transport.from()));
+        }
+        return true;
     }
 
-    public synchronized void messageToReceivers(Message m) {
+    /** Hands m, which arrived as boxed, to the UI, keeping it if it's something to show. */
+    public synchronized void messageToReceivers(Message m, ByteString boxed) {
         switch (m.payload.getKindCase()) {
             case SELF_DESTRUCT: {
                 Intent intent = new Intent(Intents.CABAL_DESTROY_REQUESTED);
@@ -192,32 +348,193 @@ public class Cabal {
             }
             // FALLTHROUGH
             case CLEARTEXT_BROADCAST: {
-                messages.add(m);
-                Intent intent = new Intent(Intents.PAYLOAD_RECEIVED);
-                intent.putExtra(Intents.EXTRA_NETWORK_ID, id().toByteArray());
-                localBroadcastManager.sendBroadcast(intent);
+                long seq;
+                try {
+                    seq = log.append(boxed, m.received.getTime());
+                } catch (IOException e) {
+                    // Not kept, so there's nothing for anyone to read back.
+                    logger.severe("unable to log message: " + e.getMessage());
+                    break;
+                }
+                synchronized (opened) {
+                    opened.put(seq, new Message(m.payload, m.from, m.received, seq));
+                }
+                events.messageKept(seq);
                 break;
             }
         }
     }
 
-    public boolean handleTransport(ByteString transport) {
-        Message payload = unboxIt(transport, box);
-        if (payload == null) {
+    /** Reserves transport's place in the delivery order, before it's opened. */
+    public long reserveTransport() {
+        return receiveOrder.reserve();
+    }
+
+    /** Decrypts and verifies a transport, returning null if it isn't for this cabal.  Thread-safe. */
+    @Override
+    public Message open(Transport transport) {
+        return BoxCodec.unboxIt(transport.body(), key);
+    }
+
+    /** Delivers an opened transport (or skips a null message) once everything before seq is done. */
+    @Override
+    public void completeTransport(long seq, Transport transport, Message message) {
+        receiveOrder.complete(seq, message == null ? null : new Received(transport, message));
+    }
+
+    /** Queues a transport to be opened on CommCenter's workers, along with whatever else is waiting. */
+    public void enqueueTransport(Transport transport) {
+        inbox.add(new Pending(reserveTransport(), transport));
+        if (draining.incrementAndGet() <= commCenter.openerThreads()) {
+            commCenter.openers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    drainInbox();
+                }
+            });
+        } else {
+            draining.decrementAndGet();
+        }
+    }
+
+    private void drainInbox() {
+        while (true) {
+            Pending p = inbox.poll();
+            if (p == null) {
+                draining.decrementAndGet();
+                // Something may have been queued after we looked but before we stopped.
+                if (inbox.isEmpty()) {
+                    return;
+                } else if (draining.incrementAndGet() > commCenter.openerThreads()) {
+                    draining.decrementAndGet();
+                    return;
+                }
+                continue;
+            }
+            Message opened = CommCenter.openOrNull(this, p.transport);
+            CommCenter.completeOrLog(this, p.seq, p.transport, opened);
+            if (opened == null) {
+                // The tag may have been rewritten on the way; see if it's for another cabal.
+                commCenter.misrouted(p.transport, this);
+            }
+        }
+    }
+
+    public boolean handleTransport(Transport transport) {
+        long seq = reserveTransport();
+        Message message = CommCenter.openOrNull(this, transport);
+        completeTransport(seq, transport, message);
+        if (message == null) {
             logger.severe("transport discarded");
             return false;
         }
-        if (ids.checkAndAdd(Util.transportID(transport))) {
+        return true;
+    }
+
+    private void deliver(Transport transport, Message payload) {
+        long now = transport.receivedMillis();
+        // Peers too old to set a sent time only get protection from replays within the window.
+        long sent = payload.payload.hasSent() ? Util.toMillis(payload.payload.getSent()) : now;
+        if (ids.checkAndAdd(transport.boxID(), sent, now)) {
             logger.severe("replay of old message");
-            // we've already seen this, so let the caller know we've handled it.
-            return true;
+            return;
         }
         logger.info("received valid payload");
-        messageToReceivers(payload);
-        return true;
+        messageToReceivers(payload, transport.body());
+    }
+
+    // The sender of a logged message that won't reopen.
+    private static final Identity.PublicKey UNREADABLE =
+            new Identity.PublicKey(Identity.UNSIGNED, new byte[Identity.PublicKey.SIZE]);
+
+    private Message opened(MessageLog.Entry entry) {
+        synchronized (opened) {
+            Message m = opened.get(entry.seq);
+            if (m != null) return m;
+        }
+        Message m = BoxCodec.reopen(entry.boxed, key);
+        if (m == null) {
+            // Shown as a message we can't display, rather than taking the list down with it.
+            logger.severe("unable to reopen logged message " + entry.seq);
+            return new Message(Payload.getDefaultInstance(), UNREADABLE, new Date(entry.receivedMillis), entry.seq);
+        }
+        m = new Message(m.payload, m.from, new Date(entry.receivedMillis), entry.seq);
+        synchronized (opened) {
+            opened.put(entry.seq, m);
+        }
+        return m;
+    }
+
+    /**
+     * The messages we've kept, oldest first.  This is a fixed view of the log as it is now, with
+     * messages opened as they're read.
+     */
+    public List<Message> messages() {
+        final MessageLog.Snapshot snapshot = log.snapshot();
+        return new AbstractList<Message>() {
+            @Override
+            public Message get(int index) {
+                if (index < 0 || index >= snapshot.size()) {
+                    throw new IndexOutOfBoundsException("index " + index + " of " + snapshot.size());
+                }
+                return opened(snapshot.read(snapshot.firstSeq + index));
+            }
+
+            @Override
+            public int size() {
+                return snapshot.size();
+            }
+        };
+    }
+
+    /**
+     * Up to max kept messages immediately before seq, oldest first.  Pass endSeq() for the most
+     * recent ones.
+     */
+    public List<Message> messagesBefore(long seq, int max) {
+        MessageLog.Snapshot snapshot = log.snapshot();
+        long end = Math.min(seq, snapshot.endSeq);
+        return range(snapshot, Math.max(snapshot.firstSeq, end - max), end);
     }
 
-    public synchronized List<Message> messages() {
-        return new ArrayList<>(messages);
+    /**
+     * Up to max kept messages immediately after seq, oldest first.  Messages are only ever
+     * appended, so calling this with the seq of the last message seen is a feed of new ones.
+     */
+    public List<Message> messagesAfter(long seq, int max) {
+        MessageLog.Snapshot snapshot = log.snapshot();
+        long start = Math.max(snapshot.firstSeq, seq + 1);
+        return range(snapshot, start, Math.min(snapshot.endSeq, start + max));
+    }
+
+    private List<Message> range(MessageLog.Snapshot snapshot, long start, long end) {
+        List<Message> out = new ArrayList<>();
+        for (long seq = start; seq < end; seq++) {
+            out.add(opened(snapshot.read(seq)));
+        }
+        return out;
+    }
+
+    /** Oldest kept message's seq. */
+    public long firstSeq() {
+        return log.firstSeq();
+    }
+
+    /** The seq the next kept message will get. */
+    public long endSeq() {
+        return log.endSeq();
+    }
+
+    /** Forgets everything kept for this cabal. */
+    public void destroy() {
+        handler.removeCallbacksAndMessages(null);
+        reassembler.clear();
+        commCenter.dispatcher().unregister(id);
+        notificationHandler.cancel();
+        events.cancel();
+        log.clear();
+        synchronized (opened) {
+            opened.clear();
+        }
     }
 }
@@ -53,14 +53,15 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
-import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
-import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.protobuf.ByteString;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 public class CabalActivity extends AppCompatActivity {
@@ -75,6 +76,47 @@ public class CabalActivity extends AppCompatActivity {
     private IntentFilter intentFilter = null;
     private BroadcastReceiver broadcastReceiver = null;
     private boolean sent = false;
+    // Messages are loaded a page at a time: the latest when we open, older and newer ones as the
+    // user scrolls towards either end, and new ones as they're appended to the cabal.  loaded holds
+    // them in log order, and no more than MAX_LOADED of them once the user has scrolled away from
+    // some: those more than a page out of sight are dropped, and read again if scrolled back to.
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_LOADED = 4 * PAGE_SIZE;
+    private final List<Message> loaded = new ArrayList<>();
+    // Whether loaded runs up to the last message kept, so new ones belong at its end, and the seq
+    // they'd follow.
+    private boolean loadedToEnd = false;
+    private long newest = -1;
+    // Each page means reading and opening boxes from the log, and new messages can arrive by the
+    // thousand when a peer comes back into range, so pages are read off the UI thread.
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private boolean loadingOlder = false;
+    private boolean loadingNewer = false;
+    private boolean loadNewerAgain = false;
+
+    // Reads a page from the log on loader, then hands it to loaded() on the UI thread.
+    private abstract class PageLoad implements Runnable {
+        final Cabal c = cabal;
+
+        abstract List<Message> read();
+
+        abstract void loaded(List<Message> page);
+
+        void start() {
+            loader.execute(this);
+        }
+
+        @Override
+        public void run() {
+            final List<Message> page = read();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    loaded(page);
+                }
+            });
+        }
+    }
 
     CommService.Binder commServiceBinder = null;
     private ServiceConnection commServiceConnection = new ServiceConnection() {
@@ -89,7 +131,7 @@ public class CabalActivity extends AppCompatActivity {
             setTitle(cabal.name());
             ImageView avatar = findViewById(R.id.avatar);
             avatar.setImageBitmap(Util.identicon(Util.IDENTICON_CABAL, cabal.myID().publicKey().identity()));
-            refreshList();
+            reloadList();
         }
 
         @Override
@@ -98,18 +140,133 @@ public class CabalActivity extends AppCompatActivity {
         }
     };
 
+    // Replaces whatever's loaded with the latest page.
+    private void reloadList() {
+        if (cabal == null) return;
+        loadedToEnd = false;
+        new PageLoad() {
+            long end;
+
+            @Override
+            List<Message> read() {
+                end = c.endSeq();
+                return c.messagesBefore(end, PAGE_SIZE);
+            }
+
+            @Override
+            void loaded(List<Message> page) {
+                loaded.clear();
+                loaded.addAll(page);
+                loadedToEnd = true;
+                newest = page.isEmpty() ? end - 1 : page.get(page.size() - 1).seq;
+                receiverListAdapter.notifyDataSetChanged();
+                if (!loaded.isEmpty()) {
+                    recyclerView.scrollToPosition(loaded.size() - 1);
+                }
+                // Anything kept since we read the page.
+                refreshList();
+            }
+        }.start();
+    }
+
+    // Appends whatever the cabal has kept since the last message loaded, if that's the end.
     private void refreshList() {
-        int size = receiverListAdapter.getItemCount();
-        boolean atBottom = size == 0 || linearLayoutManager.findLastCompletelyVisibleItemPosition() == size - 1;
-        if (cabal != null) {
-            List<Message> messages = cabal.messages();
-            receiverListAdapter.submitList(messages);
-            int lastIdx = messages.size()-1;
-            if (messages.size() > 0 && (atBottom || sent)) {
-                sent = false;
-                recyclerView.smoothScrollToPosition(lastIdx);
+        if (cabal == null || !loadedToEnd) return;
+        loadNewer();
+    }
+
+    private void loadNewer() {
+        if (loadingNewer) {
+            loadNewerAgain = true;
+            return;
+        }
+        loadingNewer = true;
+        final long after = newest;
+        new PageLoad() {
+            @Override
+            List<Message> read() {
+                return c.messagesAfter(after, PAGE_SIZE);
             }
+
+            @Override
+            void loaded(List<Message> page) {
+                loadingNewer = false;
+                // A reload while we were reading has already replaced what these would follow.
+                if (newest == after) {
+                    appendNewer(page);
+                }
+                if (loadNewerAgain) {
+                    loadNewerAgain = false;
+                    refreshList();
+                }
+            }
+        }.start();
+    }
+
+    private void appendNewer(List<Message> page) {
+        boolean more = page.size() == PAGE_SIZE;
+        int size = loaded.size();
+        boolean atBottom = linearLayoutManager.findLastCompletelyVisibleItemPosition() == size - 1;
+        if ((atBottom && loadedToEnd || sent) && more) {
+            // Too many to scroll through; skip to the latest.
+            sent = false;
+            reloadList();
+            return;
         }
+        loadedToEnd = !more;
+        if (page.isEmpty()) return;
+        size -= trimHead(page.size());
+        loaded.addAll(page);
+        newest = page.get(page.size() - 1).seq;
+        receiverListAdapter.notifyItemRangeInserted(size, page.size());
+        if (atBottom || sent) {
+            sent = false;
+            recyclerView.smoothScrollToPosition(loaded.size() - 1);
+        }
+    }
+
+    private void loadOlder() {
+        if (loadingOlder || cabal == null || loaded.isEmpty()) return;
+        loadingOlder = true;
+        final long before = loaded.get(0).seq;
+        new PageLoad() {
+            @Override
+            List<Message> read() {
+                return c.messagesBefore(before, PAGE_SIZE);
+            }
+
+            @Override
+            void loaded(List<Message> older) {
+                loadingOlder = false;
+                if (older.isEmpty() || loaded.isEmpty() || loaded.get(0).seq != before) return;
+                trimTail(older.size());
+                loaded.addAll(0, older);
+                receiverListAdapter.notifyItemRangeInserted(0, older.size());
+            }
+        }.start();
+    }
+
+    // Makes room for adding more to the other end by dropping from the head or tail whatever's
+    // over MAX_LOADED and more than a page out of sight, returning how many were dropped.  This
+    // happens before the adding, while the layout manager's positions still hold.
+    private int trimHead(int adding) {
+        int excess = Math.min(loaded.size() + adding - MAX_LOADED,
+                linearLayoutManager.findFirstVisibleItemPosition() - PAGE_SIZE);
+        if (excess <= 0) return 0;
+        loaded.subList(0, excess).clear();
+        receiverListAdapter.notifyItemRangeRemoved(0, excess);
+        return excess;
+    }
+
+    private void trimTail(int adding) {
+        int size = loaded.size();
+        int excess = Math.min(size + adding - MAX_LOADED,
+                size - 1 - linearLayoutManager.findLastVisibleItemPosition() - PAGE_SIZE);
+        if (excess <= 0) return;
+        loaded.subList(size - excess, size).clear();
+        receiverListAdapter.notifyItemRangeRemoved(size - excess, excess);
+        newest = loaded.get(loaded.size() - 1).seq;
+        loadedToEnd = false;
     }
 
     @Override
@@ -126,6 +283,18 @@ public class CabalActivity extends AppCompatActivity {
         recyclerView.setLayoutManager(linearLayoutManager);
         receiverListAdapter = new ReceiverListAdapter();
         recyclerView.setAdapter(receiverListAdapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView rv, int dx, int dy) {
+                // Pages arrive on a later frame, since the adapter can't change within a scroll callback.
+                if (dy < 0 && linearLayoutManager.findFirstVisibleItemPosition() < PAGE_SIZE / 4) {
+                    loadOlder();
+                } else if (dy > 0 && cabal != null && !loadedToEnd
+                        && linearLayoutManager.findLastVisibleItemPosition() >= loaded.size() - PAGE_SIZE / 4) {
+                    loadNewer();
+                }
+            }
+        });
 
         networkId = ByteString.copyFrom(getIntent().getByteArrayExtra(Intents.EXTRA_NETWORK_ID));
         setTitle(Util.toTitle(networkId.toByteArray()));
@@ -200,6 +369,10 @@ public class CabalActivity extends AppCompatActivity {
                         .build())
                 .build();
         sent = true;
+        if (!loadedToEnd) {
+            // Scrolled back too far for it to be appended; it'll be in the latest page.
+            reloadList();
+        }
         cabal.sendPayload(p, cabal.myID());  // TODO: fix
     }
 
@@ -336,6 +509,7 @@ public class CabalActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        loader.shutdownNow();
         unbindService(commServiceConnection);
     }
 
@@ -394,21 +568,9 @@ public class CabalActivity extends AppCompatActivity {
         }
     }
 
-    public static final DiffUtil.ItemCallback<Message> DIFF_CALLBACK  = new DiffUtil.ItemCallback<Message>() {
-        @Override
-        public boolean areItemsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
-            return oldItem.equals(newItem);
-        }
-
-        @Override
-        public boolean areContentsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
-            return oldItem.equals(newItem);
-        }
-    };
-
-    class ReceiverListAdapter extends ListAdapter<Message, MyViewHolder> {
+    class ReceiverListAdapter extends RecyclerView.Adapter<MyViewHolder> {
         public ReceiverListAdapter() {
-            super(DIFF_CALLBACK);
+            setHasStableIds(true);
         }
 
         @NonNull
@@ -421,7 +583,17 @@ public class CabalActivity extends AppCompatActivity {
 
         @Override
         public void onBindViewHolder(MyViewHolder holder, int position) {
-            holder.bindTo(getItem(position));
+            holder.bindTo(loaded.get(position));
+        }
+
+        @Override
+        public int getItemCount() {
+            return loaded.size();
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return loaded.get(position).seq;
         }
     }
 }
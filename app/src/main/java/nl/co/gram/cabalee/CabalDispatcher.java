@@ -0,0 +1,84 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import com.google.protobuf.ByteString;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Single receiver for per-cabal broadcasts, handing each to the one listener registered for the
+ * cabal it names, so the cost of an event doesn't grow with the number of cabals.
+ */
+public class CabalDispatcher {
+    private static final Logger logger = Logger.getLogger("cabalee.dispatcher");
+    private final LocalBroadcastManager localBroadcastManager;
+    private final Map<ByteString, Listener> listeners = new HashMap<>();
+
+    public interface Listener {
+        /** Called on the main thread with an intent for the listener's cabal. */
+        void onCabalEvent(Intent intent);
+    }
+
+    private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            byte[] id = intent.getByteArrayExtra(Intents.EXTRA_NETWORK_ID);
+            if (id == null) {
+                logger.severe("no cabal in " + intent.getAction());
+                return;
+            }
+            Listener l;
+            synchronized (CabalDispatcher.this) {
+                l = listeners.get(ByteString.copyFrom(id));
+            }
+            if (l != null) {
+                l.onCabalEvent(intent);
+            }
+        }
+    };
+
+    CabalDispatcher(Context context) {
+        localBroadcastManager = LocalBroadcastManager.getInstance(context);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intents.CABAL_VISIBILITY_CHANGED);
+        filter.addAction(Intents.PAYLOAD_RECEIVED);
+        filter.addAction(Intents.CABAL_DESTROY_REQUESTED);
+        filter.addAction(Intents.CABAL_DESTROY);
+        localBroadcastManager.registerReceiver(broadcastReceiver, filter);
+    }
+
+    public synchronized void register(ByteString cabalID, Listener l) {
+        listeners.put(cabalID, l);
+    }
+
+    public synchronized void unregister(ByteString cabalID) {
+        listeners.remove(cabalID);
+    }
+
+    public synchronized void close() {
+        listeners.clear();
+        localBroadcastManager.unregisterReceiver(broadcastReceiver);
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import com.google.protobuf.ByteString;
+
+import java.util.logging.Logger;
+
+/**
+ * Coalesces a cabal's new-message events.  Rather than a PAYLOAD_RECEIVED broadcast per message,
+ * listeners get one per WINDOW_MILLIS at most, carrying how many messages arrived and the range
+ * of sequence numbers they were kept under.
+ */
+public class CabalEvents {
+    private static final Logger logger = Logger.getLogger("cabalee.events");
+    public static final long WINDOW_MILLIS = 100;
+    private final ByteString cabalID;
+    private final Handler handler;
+    private final LocalBroadcastManager localBroadcastManager;
+    private int count = 0;
+    private long firstSeq = -1;
+    private long lastSeq = -1;
+    private boolean scheduled = false;
+    private long broadcasts = 0;
+    private long messages = 0;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    CabalEvents(Context context, ByteString cabalID) {
+        this.cabalID = cabalID;
+        this.handler = new Handler(context.getMainLooper());
+        this.localBroadcastManager = LocalBroadcastManager.getInstance(context);
+    }
+
+    /** Notes a new message, kept under seq.  Thread-safe. */
+    public synchronized void messageKept(long seq) {
+        count++;
+        if (firstSeq < 0) firstSeq = seq;
+        lastSeq = seq;
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(flush, WINDOW_MILLIS);
+        }
+    }
+
+    private void flush() {
+        Intent intent = new Intent(Intents.PAYLOAD_RECEIVED);
+        synchronized (this) {
+            intent.putExtra(Intents.EXTRA_NETWORK_ID, cabalID.toByteArray());
+            intent.putExtra(Intents.EXTRA_COUNT, count);
+            intent.putExtra(Intents.EXTRA_FIRST_SEQ, firstSeq);
+            intent.putExtra(Intents.EXTRA_SEQ, lastSeq);
+            messages += count;
+            broadcasts++;
+            if (broadcasts % 100 == 0) {
+                logger.info(messages + " messages in " + broadcasts + " broadcasts");
+            }
+            count = 0;
+            firstSeq = lastSeq = -1;
+            scheduled = false;
+        }
+        localBroadcastManager.sendBroadcast(intent);
+    }
+
+    /** Drops anything not yet broadcast. */
+    public synchronized void cancel() {
+        handler.removeCallbacks(flush);
+        count = 0;
+        firstSeq = lastSeq = -1;
+        scheduled = false;
+    }
+}
@@ -16,19 +16,16 @@ package nl.co.gram.cabalee;
 
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.SystemClock;
 
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
-
-import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-public class CabalNotification {
+public class CabalNotification implements CabalDispatcher.Listener {
     private static final Logger logger = Logger.getLogger("cabalee.channel");
     private static final AtomicInteger notificationIdGen = new AtomicInteger(3);
     private final Context context;
@@ -38,14 +35,25 @@ public class CabalNotification {
     private int unreadCount = 0;
     private final Cabal rh;
     private final NotificationManager notificationManager;
-    private final BroadcastReceiver broadcastReceiver;
-    private final LocalBroadcastManager localBroadcastManager;
     private boolean destruction = false;
+    // Posting a notification is an IPC, so updates are posted at most once per interval.
+    private static final long MIN_POST_INTERVAL_MILLIS = 1_000;
+    private final Handler handler;
+    private long lastPostedMillis = 0;
+    private boolean postPending = false;
+    private final Runnable post = new Runnable() {
+        @Override
+        public void run() {
+            postPending = false;
+            post();
+        }
+    };
 
     CabalNotification(Context context, Cabal rh) {
         this.context = context;
         notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         this.rh = rh;
+        handler = new Handler(context.getMainLooper());
         notificationID = notificationIdGen.addAndGet(1);
         Intent act = new Intent(context, CabalActivity.class);
         act.putExtra(Intents.EXTRA_NETWORK_ID, rh.id().toByteArray());
@@ -58,40 +66,37 @@ public class CabalNotification {
                 .setAutoCancel(true)
                 .setOnlyAlertOnce(true)
                 .setLargeIcon(Util.identicon(Util.IDENTICON_CABAL, rh.id()));
-        broadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String action = intent.getAction();
-                byte[] id = intent.getByteArrayExtra(Intents.EXTRA_NETWORK_ID);
-                if (!Arrays.equals(id, rh.id().toByteArray())) {
-                    return;
-                }
-                if (Intents.CABAL_VISIBILITY_CHANGED.equals(action)) {
-                    boolean v = intent.getBooleanExtra(Intents.EXTRA_VISIBILITY, false);
-                    changeVisibility(v);
-                } else if (Intents.PAYLOAD_RECEIVED.equals(action)) {
-                    incrementCount(1);
-                } else if (Intents.CABAL_DESTROY_REQUESTED.equals(action)) {
-                    destruction = true;
-                    incrementCount(0);
-                } else if (Intents.CABAL_DESTROY.equals(action)) {
-                    notificationManager.cancel(notificationID);
-                }
-            }
-        };
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(Intents.CABAL_VISIBILITY_CHANGED);
-        filter.addAction(Intents.PAYLOAD_RECEIVED);
-        filter.addAction(Intents.CABAL_DESTROY_REQUESTED);
-        filter.addAction(Intents.CABAL_DESTROY);
-        localBroadcastManager = LocalBroadcastManager.getInstance(context);
-        localBroadcastManager.registerReceiver(broadcastReceiver, filter);
+    }
+
+    @Override
+    public void onCabalEvent(Intent intent) {
+        String action = intent.getAction();
+        if (Intents.CABAL_VISIBILITY_CHANGED.equals(action)) {
+            boolean v = intent.getBooleanExtra(Intents.EXTRA_VISIBILITY, false);
+            changeVisibility(v);
+        } else if (Intents.PAYLOAD_RECEIVED.equals(action)) {
+            incrementCount(intent.getIntExtra(Intents.EXTRA_COUNT, 1));
+        } else if (Intents.CABAL_DESTROY_REQUESTED.equals(action)) {
+            // Not worth waiting to tell anyone about.
+            destruction = true;
+            cancelPost();
+            post();
+        } else if (Intents.CABAL_DESTROY.equals(action)) {
+            cancel();
+        }
+    }
+
+    /** Removes the notification, and any update still waiting to be posted. */
+    public void cancel() {
+        cancelPost();
+        notificationManager.cancel(notificationID);
     }
 
     private void changeVisibility(boolean v) {
         visibleViaNetworkActivity = v;
         if (visibleViaNetworkActivity) {
             unreadCount = 0;
+            cancelPost();
             notificationManager.cancel(notificationID);
         }
     }
@@ -99,6 +104,24 @@ public class CabalNotification {
     private void incrementCount(int by) {
         if (visibleViaNetworkActivity) return;
         unreadCount += by;
+        if (postPending) return;
+        long wait = lastPostedMillis + MIN_POST_INTERVAL_MILLIS - SystemClock.elapsedRealtime();
+        if (wait <= 0) {
+            post();
+        } else {
+            postPending = true;
+            handler.postDelayed(post, wait);
+        }
+    }
+
+    private void cancelPost() {
+        handler.removeCallbacks(post);
+        postPending = false;
+    }
+
+    private void post() {
+        if (visibleViaNetworkActivity) return;
+        lastPostedMillis = SystemClock.elapsedRealtime();
         NotificationCompat.Builder b = builder
                 .setContentTitle(rh.name())
                 .setNumber(unreadCount);
@@ -0,0 +1,102 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.logging.Logger;
+
+/**
+ * What one end of a link can do, as sent in its HELLO_V1 frame, or what both ends can, once
+ * combined with common().  Peers from before the hello existed never send one, and are taken to
+ * be LEGACY: untagged frames of at most 32K, and nothing else.
+ */
+public final class Capabilities {
+    private static final Logger logger = Logger.getLogger("cabalee.capabilities");
+    /** Understands CABAL_MESSAGE_V2. */
+    public static final long ROUTING_TAGS = 1;
+    /** Answers RECONCILE_V1 sketches. */
+    public static final long RECONCILE = 1 << 1;
+    /** Understands CABAL_FRAGMENT_V1. */
+    public static final long FRAGMENTS = 1 << 2;
+    // 1 << 3 once meant compressed boxes, which can't be negotiated per link: a box goes on to
+    // peers we have no link with (see Compression).  Don't reuse it.
+    /** Unpacks BATCH_V1 frames. */
+    public static final long BATCHING = 1 << 4;
+
+    /** "Cabalee1", which had no hello. */
+    public static final int LEGACY_VERSION = 1;
+    public static final int VERSION = 2;
+
+    public static final Capabilities LEGACY = new Capabilities(LEGACY_VERSION, 0, 32 * 1024);
+    public static final Capabilities OURS = new Capabilities(VERSION,
+            ROUTING_TAGS | RECONCILE | FRAGMENTS | BATCHING, Fragments.MAX_FRAME_BYTES);
+
+    public final int version;
+    public final long features;
+    public final int maxFrameBytes;
+
+    public Capabilities(int version, long features, int maxFrameBytes) {
+        this.version = version;
+        this.features = features;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    public boolean has(long feature) {
+        return (features & feature) == feature;
+    }
+
+    /** The best both we and a peer with theirs can do. */
+    public Capabilities common(Capabilities theirs) {
+        return new Capabilities(Math.min(version, theirs.version), features & theirs.features,
+                Math.min(maxFrameBytes, theirs.maxFrameBytes));
+    }
+
+    public ByteString helloFrame() {
+        Hello hello = Hello.newBuilder()
+                .setVersion(version)
+                .setFeatures(features)
+                .setMaxFrameBytes(maxFrameBytes)
+                .build();
+        return ByteString.copyFrom(new byte[]{MsgType.HELLO_V1_VALUE}).concat(hello.toByteString());
+    }
+
+    /** Parses a HELLO_V1 frame, or returns null if it's malformed. */
+    public static Capabilities parse(ByteString frame) {
+        if (frame.size() < 1 || frame.byteAt(0) != MsgType.HELLO_V1_VALUE) {
+            return null;
+        }
+        Hello hello;
+        try {
+            hello = Hello.parseFrom(frame.substring(1));
+        } catch (InvalidProtocolBufferException e) {
+            logger.severe("parsing hello: " + e.getMessage());
+            return null;
+        }
+        // A frame limit too small for a minimal box can't be right.
+        if (hello.getVersion() < VERSION || hello.getMaxFrameBytes() < 1024) {
+            logger.severe("bad hello: " + hello);
+            return null;
+        }
+        return new Capabilities(hello.getVersion(), hello.getFeatures(), hello.getMaxFrameBytes());
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " features 0x" + Long.toHexString(features) + ", " + maxFrameBytes
+                + " byte frames";
+    }
+}
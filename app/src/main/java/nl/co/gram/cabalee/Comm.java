@@ -4,5 +4,5 @@ import com.google.protobuf.ByteString;
 
 public interface Comm {
     String name();
-    void sendPayload(ByteString payload);
+    void sendPayload(ByteString payload, SendQueue.Priority priority);
 }
@@ -15,6 +15,8 @@
 package nl.co.gram.cabalee;
 
 import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
@@ -23,8 +25,17 @@ import com.google.protobuf.ByteString;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 public class CommCenter {
@@ -32,28 +43,254 @@ public class CommCenter {
     private final CommService commService;
     private Map<String, Comm> commsByName = new HashMap<>();
     private Map<ByteString, Cabal> messageHandlers = new HashMap<>();
-    private IDSet recentMessageIDs = new IDSet(60_000_000_000L, 15);
+    // Routing tags for the previous, current, and next epoch of every cabal, to allow for clock skew.
+    private Map<ByteString, Cabal> routes = new HashMap<>();
+    private long routesEpoch = -1;
+    // Remembers transports for ~15 minutes, in at most 1MB no matter how much is relayed.
+    private final RecentIDFilter recentMessageIDs = new RecentIDFilter(
+            60_000_000_000L, 15, 4096, 1e-4, 1 << 20, SystemClock.elapsedRealtimeNanos());
     private final LocalBroadcastManager localBroadcastManager;
+    // Opens (decrypts and verifies) transports off the threads that receive them.  When it falls
+    // behind, the receiving thread does the work itself, which slows intake rather than queueing
+    // without bound.
+    private final ThreadPoolExecutor openers;
+    private static final int OPENER_QUEUE_SIZE = 256;
+    private final int openerThreads;
+    private final CabalDispatcher dispatcher;
+    private final Handler handler;
+    private final Gossip gossip = new Gossip(Gossip.ADAPTIVE);
+    private final Random random = new Random();
+    // The transports each comm's peer has sent us, so we don't send them back.
+    private static final int KNOWN_IDS_PER_COMM = 1024;
+    private final Map<String, KnownIDs> knownByComm = new HashMap<>();
+    // Recent transports, passed on to peers that connect after they went by.
+    private static final int RELAY_CACHE_BYTES = 512 * 1024;
+    private static final long RELAY_CACHE_MILLIS = 5 * 60 * 1_000;
+    private final RelayCache relayCache = new RelayCache(RELAY_CACHE_BYTES, RELAY_CACHE_MILLIS);
+    // Rather than replaying the whole relay cache to a new peer, each side sends the other an
+    // IdSketch of its cache (a RECONCILE_V1 frame), and the receiver passes on only what the
+    // difference shows the sender is missing.  A sketch too small to decode gets a request for
+    // one RECONCILE_GROWTH times bigger, up to RECONCILE_MAX_CELLS, past which the whole cache
+    // is replayed after all.
+    private static final int RECONCILE_SKETCH = 0;
+    private static final int RECONCILE_REQUEST = 1;
+    private static final int RECONCILE_HEADER = 4;  // type, kind, 16-bit cell count
+    private static final int RECONCILE_INITIAL_CELLS = 30;
+    private static final int RECONCILE_GROWTH = 4;
+    private static final int RECONCILE_MAX_CELLS = 480;
+    // What each link can carry, from the HELLO_V1 frames exchanged when it comes up.  Until the
+    // peer's hello arrives, or if it doesn't within HELLO_TIMEOUT_MILLIS, it's taken to be LEGACY.
+    private static final long HELLO_TIMEOUT_MILLIS = 5_000;
+    private static final ByteString HELLO = Capabilities.OURS.helloFrame();
+    private final Map<String, Capabilities> modes = new HashMap<>();
     public static final ByteString KEEP_ALIVE_MESSAGE = ByteString.copyFrom(new byte[]{MsgType.KEEPALIVE_MESSAGE_V1_VALUE});
+    // Links that have carried nothing for KEEP_ALIVE_MILLIS get a keepalive, at wakeups aligned
+    // to within a quarter of that.
+    private final KeepAlives keepAlives = new KeepAlives(
+            CommService.KEEP_ALIVE_MILLIS, CommService.KEEP_ALIVE_MILLIS / 4, SystemClock.elapsedRealtime());
 
     CommCenter(CommService svc) {
         this.commService = svc;
         localBroadcastManager = LocalBroadcastManager.getInstance(svc);
+        MessageLog.wipe(MessageLog.dir(svc));
+        MessageLog.wipe(Reassembler.dir(svc));
+        dispatcher = new CabalDispatcher(svc);
+        handler = new Handler(svc.getMainLooper());
+        logger.info("recent message filter using " + recentMessageIDs.bytesUsed() + " bytes");
+        openerThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        openers = new ThreadPoolExecutor(openerThreads, openerThreads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(OPENER_QUEUE_SIZE), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "opener-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        openers.allowCoreThreadTimeOut(true);
+    }
+
+    CabalDispatcher dispatcher() {
+        return dispatcher;
+    }
+
+    public void onDestroy() {
+        dispatcher.close();
+    }
+
+    Executor openers() {
+        return openers;
+    }
+
+    int openerThreads() {
+        return openerThreads;
     }
 
     public synchronized Collection<Comm> activeComms() {
         return new ArrayList<>(commsByName.values());
     }
 
-    public synchronized void addComm(Comm comm) {
+    public synchronized void addComm(final Comm comm) {
         logger.severe("Adding comm: " + comm.name());
         commsByName.put(comm.name(), comm);
+        knownByComm.put(comm.name(), new KnownIDs(KNOWN_IDS_PER_COMM));
+        keepAlives.added(comm.name(), SystemClock.elapsedRealtime());
         broadcastActive();
+        comm.sendPayload(HELLO, SendQueue.Priority.LOCAL);
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CommCenter.this) {
+                    if (commsByName.get(comm.name()) != comm || modes.containsKey(comm.name())) return;
+                    modes.put(comm.name(), Capabilities.LEGACY);
+                }
+                logger.info("no hello from " + comm.name() + ", treating it as legacy");
+                replay(comm, null);
+            }
+        }, HELLO_TIMEOUT_MILLIS);
+    }
+
+    private void hello(String from, ByteString frame) {
+        Capabilities theirs = Capabilities.parse(frame);
+        if (theirs == null) {
+            logger.severe("malformed hello from " + from);
+            return;
+        }
+        Capabilities mode = Capabilities.OURS.common(theirs);
+        Comm comm;
+        Capabilities before;
+        synchronized (this) {
+            comm = commsByName.get(from);
+            if (comm == null) return;
+            before = modes.put(from, mode);
+        }
+        logger.info("link to " + from + ": " + mode);
+        if (before != null) {
+            return;  // a late hello; we've caught it up already
+        }
+        // Peers that can reconcile get only what they're missing; others get everything.
+        if (mode.has(Capabilities.RECONCILE)) {
+            sendSketch(comm, RECONCILE_INITIAL_CELLS);
+        } else {
+            replay(comm, null);
+        }
+    }
+
+    /** What the link to comm can carry. */
+    public synchronized Capabilities mode(String comm) {
+        Capabilities mode = modes.get(comm);
+        return mode == null ? Capabilities.LEGACY : mode;
+    }
+
+    /**
+     * The frame to send t as on a link with mode, or null if it can't go at all.  Links whose
+     * peer hasn't said otherwise get untagged frames, which every version understands.
+     */
+    static ByteString frameFor(Transport t, Capabilities mode) {
+        ByteString frame = t.frame();
+        if (!mode.has(Capabilities.ROUTING_TAGS)
+                || (t.type() == MsgType.CABAL_FRAGMENT_V1 && !mode.has(Capabilities.FRAGMENTS))) {
+            frame = t.untaggedFrame();
+        }
+        return frame == null || frame.size() > mode.maxFrameBytes ? null : frame;
+    }
+
+    private static ByteString reconcileFrame(int kind, int cells, byte[] sketch) {
+        byte[] header = {MsgType.RECONCILE_V1_VALUE, (byte) kind, (byte) (cells >>> 8), (byte) cells};
+        return ByteString.copyFrom(header).concat(ByteString.copyFrom(sketch));
+    }
+
+    private void sendSketch(Comm comm, int cells) {
+        IdSketch sketch = new IdSketch(cells);
+        for (Transport t : relayCache.recent(System.currentTimeMillis())) {
+            sketch.add(IdSketch.key(t.id()));
+        }
+        comm.sendPayload(reconcileFrame(RECONCILE_SKETCH, cells, sketch.toByteArray()), SendQueue.Priority.LOCAL);
+    }
+
+    // Sends comm the cached transports whose keys are in only, or all of them if only is null.
+    private void replay(Comm comm, Set<Long> only) {
+        int sent = 0;
+        KnownIDs known;
+        synchronized (this) {
+            known = knownByComm.get(comm.name());
+        }
+        Capabilities mode = mode(comm.name());
+        for (Transport t : relayCache.replayFor(comm.name(), System.currentTimeMillis())) {
+            if ((only == null || only.contains(IdSketch.key(t.id()))) && (known == null || !known.contains(t.id()))) {
+                ByteString frame = frameFor(t, mode);
+                if (frame == null) continue;
+                comm.sendPayload(frame, t.from() == null ? SendQueue.Priority.LOCAL : SendQueue.Priority.RELAYED);
+                sent++;
+            }
+        }
+        logger.info("Replayed " + sent + " recent transports to " + comm.name());
+    }
+
+    /**
+     * The cell count in a RECONCILE_V1 frame's header, or -1 if the frame is too short or the
+     * count isn't one a sketch can have, which any peer could otherwise crash us with.
+     */
+    static int sketchCells(ByteString frame) {
+        if (frame.size() < RECONCILE_HEADER) {
+            return -1;
+        }
+        int cells = ((frame.byteAt(2) & 0xff) << 8) | (frame.byteAt(3) & 0xff);
+        return cells <= RECONCILE_MAX_CELLS && IdSketch.validSize(cells) ? cells : -1;
+    }
+
+    private void reconcile(String from, ByteString frame) {
+        Comm comm;
+        synchronized (this) {
+            comm = commsByName.get(from);
+        }
+        int cells = sketchCells(frame);
+        if (comm == null || cells < 0) {
+            logger.severe("unable to reconcile with " + from);
+            return;
+        }
+        int kind = frame.byteAt(1);
+        switch (kind) {
+            case RECONCILE_REQUEST:
+                sendSketch(comm, cells);
+                break;
+            case RECONCILE_SKETCH: {
+                IdSketch theirs = IdSketch.parse(frame, RECONCILE_HEADER);
+                if (theirs == null || theirs.cells() != cells) {
+                    logger.severe("malformed sketch from " + from);
+                    return;
+                }
+                IdSketch ours = new IdSketch(cells);
+                for (Transport t : relayCache.recent(System.currentTimeMillis())) {
+                    ours.add(IdSketch.key(t.id()));
+                }
+                ours.subtract(theirs);
+                Set<Long> theyLack = new HashSet<>();
+                List<Long> weLack = new ArrayList<>();
+                if (ours.decode(theyLack, weLack)) {
+                    // They'll send what we lack once they've decoded our sketch.
+                    logger.info("reconciled with " + from + ": they lack " + theyLack.size() + ", we lack " + weLack.size());
+                    replay(comm, theyLack);
+                } else if (cells * RECONCILE_GROWTH <= RECONCILE_MAX_CELLS) {
+                    comm.sendPayload(reconcileFrame(RECONCILE_REQUEST, cells * RECONCILE_GROWTH, new byte[0]), SendQueue.Priority.LOCAL);
+                } else {
+                    logger.info("sets differ too much to reconcile with " + from);
+                    replay(comm, null);
+                }
+                break;
+            }
+            default:
+                logger.severe("unknown reconcile kind " + kind);
+        }
     }
 
     public synchronized void removeComm(Comm comm) {
         logger.severe("Removing comm: " + comm.name());
         commsByName.remove(comm.name());
+        knownByComm.remove(comm.name());
+        modes.remove(comm.name());
+        keepAlives.removed(comm.name());
         broadcastActive();
     }
 
@@ -66,26 +303,142 @@ public class CommCenter {
         localBroadcastManager.sendBroadcast(intent);
     }
 
-    public synchronized void sendToAll(ByteString payload, String except) {
+    /**
+     * Notes that comm has just put something on the air, so it needs no keepalive for a while.
+     * Comms call this from their write path rather than us on enqueueing: a frame that's still
+     * queued, or was dropped, keeps nothing alive.
+     */
+    public void wrote(String comm) {
+        keepAlives.sent(comm, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Sends a keepalive on every link that's been quiet long enough, or nearly, returning how
+     * long to wait before calling again.
+     */
+    public long sendKeepAlives() {
+        long now = SystemClock.elapsedRealtime();
+        List<String> due = keepAlives.due(now);
+        if (!due.isEmpty()) {
+            List<Comm> to = new ArrayList<>();
+            synchronized (this) {
+                for (String name : due) {
+                    Comm comm = commsByName.get(name);
+                    if (comm != null) to.add(comm);
+                }
+            }
+            logger.info("Sending keepalives to " + to.size() + " of " + activeComms().size() + " comms");
+            for (Comm comm : to) {
+                comm.sendPayload(KEEP_ALIVE_MESSAGE, SendQueue.Priority.KEEPALIVE);
+            }
+            logger.info(keepAlives.toString(now));
+        }
+        return keepAlives.delayMillis(SystemClock.elapsedRealtime());
+    }
+
+    public KeepAlives keepAlives() {
+        return keepAlives;
+    }
+
+    /** Sends payload to every comm but except, returning how many it went to. */
+    public synchronized int sendToAll(ByteString payload, String except, SendQueue.Priority priority) {
+        int sent = 0;
         for (Map.Entry<String, Comm> entry : commsByName.entrySet()) {
             if (except != null && except.equals(entry.getKey())) {
                 continue;
             }
             logger.info("Sending " + payload.size() + " bytes to " + entry.getValue().name());
-            entry.getValue().sendPayload(payload);
+            entry.getValue().sendPayload(payload, priority);
+            sent++;
         }
+        return sent;
     }
 
-    private static final byte[] TRANSPORT_PREFIX = {MsgType.CABAL_MESSAGE_V1_VALUE};
-    public boolean broadcastTransport(ByteString t, String from) {
-        if (recentMessageIDs.checkAndAdd(Util.transportID(t))) {
+    /**
+     * Sends or relays t, unless it's a duplicate, in which case this returns false.  Relays go
+     * out, or don't, once Gossip has decided.
+     */
+    public boolean broadcastTransport(final Transport t) {
+        if (recentMessageIDs.checkAndAdd(t.id(), SystemClock.elapsedRealtimeNanos())) {
+            gossip.heardAgain(t.id());
             return false;
         }
-        ByteString payload = ByteString.copyFrom(TRANSPORT_PREFIX).concat(t);
-        sendToAll(payload, from);
+        relayCache.add(t);
+        gossip.heard(t);
+        long delay = t.from() == null ? 0 : gossip.delayMillis(random.nextDouble());
+        if (delay == 0) {
+            relay(t);
+        } else {
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    relay(t);
+                }
+            }, delay);
+        }
         return true;
     }
 
+    private void relay(Transport t) {
+        List<Comm> to = new ArrayList<>();
+        List<ByteString> frames = new ArrayList<>();
+        int known = 0;
+        synchronized (this) {
+            for (Map.Entry<String, Comm> entry : commsByName.entrySet()) {
+                if (entry.getKey().equals(t.from())) continue;
+                KnownIDs k = knownByComm.get(entry.getKey());
+                if (k != null && k.contains(t.id())) {
+                    known++;
+                    continue;
+                }
+                ByteString frame = frameFor(t, mode(entry.getKey()));
+                if (frame != null) {
+                    to.add(entry.getValue());
+                    frames.add(frame);
+                }
+            }
+        }
+        gossip.alreadyKnown(known);
+        if (!gossip.decide(t, to.size(), random.nextDouble())) {
+            return;
+        }
+        SendQueue.Priority priority = t.from() == null ? SendQueue.Priority.LOCAL : SendQueue.Priority.RELAYED;
+        for (int i = 0; i < to.size(); i++) {
+            to.get(i).sendPayload(frames.get(i), priority);
+        }
+        gossip.transmitted(to.size());
+    }
+
+    // Notes that the peer on comm from has t.
+    private void knownBy(String from, Transport t) {
+        KnownIDs k;
+        synchronized (this) {
+            k = knownByComm.get(from);
+        }
+        if (k != null) {
+            k.add(t.id());
+        }
+    }
+
+    /** Relaying statistics. */
+    public Gossip gossip() {
+        return gossip;
+    }
+
+    private synchronized Cabal route(ByteString tag) {
+        long epoch = Cabal.routingEpoch(System.currentTimeMillis());
+        if (epoch != routesEpoch) {
+            routes = new HashMap<>();
+            for (Cabal c : messageHandlers.values()) {
+                for (long e = epoch - 1; e <= epoch + 1; e++) {
+                    routes.put(c.routingTag(e), c);
+                }
+            }
+            routesEpoch = epoch;
+        }
+        return routes.get(tag);
+    }
+
     synchronized public List<Cabal> receivers() {
         return new ArrayList<>(messageHandlers.values());
     }
@@ -105,17 +458,49 @@ public class CommCenter {
                 rh = new Cabal(key, this, commService);
         }
         messageHandlers.put(rh.id(), rh);
+        routesEpoch = -1;
         return rh;
     }
 
     public void handlePayloadBytes(String from, ByteString bs) {
         if (bs.size() < 1) {
            logger.severe("payload is too small");
+           return;
         }
         switch (bs.byteAt(0)) {
-            case MsgType.CABAL_MESSAGE_V1_VALUE: {
+            case MsgType.CABAL_MESSAGE_V1_VALUE:
+            case MsgType.CABAL_MESSAGE_V2_VALUE:
+            case MsgType.CABAL_FRAGMENT_V1_VALUE: {
                 logger.info("Received transport of size " + bs.size() + " from " + from);
-                handleTransport(from, bs.substring(1));
+                Transport t = Transport.parse(from, bs);
+                if (t == null) {
+                    logger.severe("malformed transport");
+                    break;
+                }
+                handleTransport(t);
+                break;
+            }
+            case MsgType.RECONCILE_V1_VALUE: {
+                reconcile(from, bs);
+                break;
+            }
+            case MsgType.HELLO_V1_VALUE: {
+                hello(from, bs);
+                break;
+            }
+            case MsgType.BATCH_V1_VALUE: {
+                List<ByteString> frames = Batcher.unpack(bs);
+                if (frames == null) {
+                    logger.severe("malformed batch from " + from);
+                    break;
+                }
+                for (ByteString frame : frames) {
+                    if (frame.byteAt(0) == MsgType.BATCH_V1_VALUE) {
+                        logger.severe("nested batch from " + from);
+                        continue;
+                    }
+                    handlePayloadBytes(from, frame);
+                }
                 break;
             }
             case MsgType.KEEPALIVE_MESSAGE_V1_VALUE: {
@@ -127,27 +512,136 @@ public class CommCenter {
         }
     }
 
-    private void handleTransport(String remote, ByteString t) {
-        if (!broadcastTransport(t, remote)) {
+    private void handleTransport(final Transport t) {
+        knownBy(t.from(), t);
+        if (!broadcastTransport(t)) {
             logger.info("discarding duplicate transport");
             return;
         }
-        Collection<Cabal> rhs;
+        if (t.tag() != null) {
+            final Cabal rh = route(t.tag());
+            if (rh != null && t.type() == MsgType.CABAL_FRAGMENT_V1) {
+                openers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!rh.handleFragment(t)) {
+                            misrouted(t, rh);
+                        }
+                    }
+                });
+                return;
+            } else if (rh != null) {
+                rh.enqueueTransport(t);
+                return;
+            }
+            // Usually it's for a cabal we're not in, but the tag isn't authenticated, so a relay
+            // may have rewritten it.
+            logger.fine("routing tag matches none of our cabals");
+        }
+        tryAll(t, null);
+    }
+
+    /**
+     * Tries a tagged transport that didn't open for the cabal its tag pointed at, notRh,
+     * against all the others.
+     */
+    void misrouted(Transport t, Cabal notRh) {
+        logger.info("transport didn't open for the cabal it was tagged for");
+        tryAll(t, notRh);
+    }
+
+    // Tries t against every cabal but except.  Untagged transports from older peers and
+    // mis-tagged ones hold a place in every cabal's delivery order until we know which they
+    // belong to.
+    private void tryAll(final Transport t, Cabal except) {
+        final List<Cabal> rhs;
         synchronized (this) {
             rhs = new ArrayList<>(messageHandlers.values());
         }
-        for (Cabal rh : rhs) {
-            if (rh.handleTransport(t)) {
-                break;
+        rhs.remove(except);
+        if (rhs.isEmpty()) {
+            return;
+        }
+        if (t.type() == MsgType.CABAL_FRAGMENT_V1) {
+            openers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Cabal rh : rhs) {
+                        if (rh.handleFragment(t)) return;
+                    }
+                }
+            });
+            return;
+        }
+        final long[] seqs = new long[rhs.size()];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = rhs.get(i).reserveTransport();
+        }
+        openers.execute(new Runnable() {
+            @Override
+            public void run() {
+                open(t, rhs, seqs);
             }
+        });
+    }
+
+    /** What opening a transport needs of a cabal. */
+    interface Opener {
+        Message open(Transport t);
+        void completeTransport(long seq, Transport t, Message m);
+    }
+
+    /**
+     * Opens t with the first of rhs it's for, completing each opener's reserved seq, with null
+     * for the ones it isn't for.  Every seq is completed whatever goes wrong, since one left
+     * reserved would hold up every later delivery in its cabal for good.
+     */
+    static void open(Transport t, List<? extends Opener> rhs, long[] seqs) {
+        Message m = null;
+        for (int i = 0; i < seqs.length; i++) {
+            Message opened = m == null ? openOrNull(rhs.get(i), t) : null;
+            completeOrLog(rhs.get(i), seqs[i], t, opened);
+            if (opened != null) {
+                m = opened;
+            }
+        }
+        if (m == null) {
+            logger.info("transport not for any of our cabals");
+        }
+    }
+
+    /** Opens t with rh, treating anything it throws as t not being for it. */
+    static Message openOrNull(Opener rh, Transport t) {
+        try {
+            return rh.open(t);
+        } catch (RuntimeException e) {
+            logger.severe("opening transport: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Completes seq with rh, logging rather than throwing if delivering fails: seq itself is
+     * completed by then, and the caller still has others to complete.
+     */
+    static void completeOrLog(Opener rh, long seq, Transport t, Message m) {
+        try {
+            rh.completeTransport(seq, t, m);
+        } catch (RuntimeException e) {
+            logger.severe("delivering transport: " + e);
         }
     }
 
     public void onTrimMemory() {
-        recentMessageIDs.trimMemory();
+        // recentMessageIDs is fixed-size, so the relay cache is all there is to give back.
+        relayCache.clear();
     }
 
     public synchronized void destroyCabal(byte[] id) {
-        messageHandlers.remove(ByteString.copyFrom(id));
+        Cabal cabal = messageHandlers.remove(ByteString.copyFrom(id));
+        if (cabal != null) {
+            cabal.destroy();
+        }
+        routesEpoch = -1;
     }
 }
@@ -53,12 +53,11 @@ public class CommService extends Service {
     private WifiP2pCommCenter wifiP2pCommCenter = null;
     private WifiAwareCommCenter wifiAwareCommCenter = null;
 
+    // Wakes up only when some link has been quiet for KEEP_ALIVE_MILLIS (see KeepAlives).
     private final Runnable keepAliveRunnable = new Runnable() {
         @Override
         public void run() {
-            logger.info("Sending keepalives");
-            commCenter.sendToAll(CommCenter.KEEP_ALIVE_MESSAGE, null);
-            handler.postDelayed(this, KEEP_ALIVE_MILLIS);
+            handler.postDelayed(this, commCenter.sendKeepAlives());
         }
     };
 
@@ -202,6 +201,7 @@ public class CommService extends Service {
             wifiP2pCommCenter.onDestroy();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && wifiAwareCommCenter != null)
             wifiAwareCommCenter.onDestroy();
+        commCenter.onDestroy();
         notificationManager.cancel(NOTIFICATION_ID);
         localBroadcastManager.unregisterReceiver(broadcastReceiver);
         if (serverPort != null)
@@ -0,0 +1,138 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.logging.Logger;
+
+/**
+ * Raw deflate of serialized payloads against a preset dictionary, so even short chat messages
+ * have something to refer back to.  Compressed data is [dictionary ID (1)] [size (4)] [deflate],
+ * and the ID lets a dictionary be replaced without misreading anything compressed with the old
+ * one: IDs that aren't known here are refused rather than guessed at.
+ *
+ * Boxes are opened whether compressed or not, but none are sent compressed yet.  Releases from
+ * before compression take the flag for a bad padding size and drop the box, and a box goes on to
+ * peers we have no link with, so there's no negotiating it: sending waits for a flag day, by
+ * which no one is left on such a release.
+ */
+public class Compression {
+    private static final Logger logger = Logger.getLogger("cabalee.compression");
+    /** Payloads smaller than this are never worth compressing once padding is added. */
+    public static final int MIN_SIZE = 96;
+    /** Largest payload we'll inflate, which is about as big as a fragmented box can be. */
+    public static final int MAX_SIZE = Fragments.MAX_BOX_BYTES;
+    /** Deflate can't do better than this, so a larger claimed size is a lie. */
+    private static final int MAX_RATIO = 1032;
+    private static final int HEADER = 1 + 4;
+    private static final int CHAT_V1 = 1;
+
+    // Deflate reaches back at most 32K, and finds the end of the dictionary cheapest to refer to,
+    // so the commonest strings go last.
+    private static final byte[] CHAT_V1_DICTIONARY = (
+            "https://www. .com .org .nl http:// @gmail.com " +
+            "tomorrow tonight today yesterday morning afternoon evening weekend minutes hours " +
+            "Monday Tuesday Wednesday Thursday Friday Saturday Sunday " +
+            "please thanks thank you sorry okay alright actually probably definitely " +
+            "everyone anyone someone something nothing everything anything " +
+            "where are you? what do you think? how are you? are you there? on my way " +
+            "let me know if you can see you soon see you there sounds good I don't know " +
+            "I'm going to I'll be there in we should we could do you want to meet at the " +
+            "because about would should could there their they're them then than " +
+            "this that with have from they will what when which your just like know " +
+            "the and you for not are but can was all out get one now here yes no ok lol " +
+            "I'm I'll it's don't can't won't that's what's there's let's we're you're ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * Compresses in[off:off+len] into out[outOff:], returning the compressed size, or -1 if it's
+     * too small to bother with or wouldn't come out smaller.  out needs room for len bytes.
+     */
+    public static int compress(byte[] in, int off, int len, byte[] out, int outOff) {
+        if (len < MIN_SIZE || len > MAX_SIZE) return -1;
+        Deflater d = deflaters.get();
+        d.reset();
+        d.setDictionary(CHAT_V1_DICTIONARY);
+        d.setInput(in, off, len);
+        d.finish();
+        int limit = len - HEADER;
+        int n = 0;
+        while (!d.finished() && n < limit) {
+            n += d.deflate(out, outOff + HEADER + n, limit - n);
+        }
+        if (!d.finished()) return -1;
+        out[outOff] = CHAT_V1;
+        out[outOff + 1] = (byte) (len >>> 24);
+        out[outOff + 2] = (byte) (len >>> 16);
+        out[outOff + 3] = (byte) (len >>> 8);
+        out[outOff + 4] = (byte) len;
+        return HEADER + n;
+    }
+
+    /**
+     * Inflates what compress produced, or returns null if it's malformed.  Nothing is allocated
+     * beyond what len bytes of deflate could really expand to.
+     */
+    public static byte[] decompress(byte[] in, int off, int len) {
+        if (len < HEADER) return null;
+        if (in[off] != CHAT_V1) {
+            logger.severe("unknown compression dictionary " + in[off]);
+            return null;
+        }
+        int size = ((in[off + 1] & 0xff) << 24) | ((in[off + 2] & 0xff) << 16) | ((in[off + 3] & 0xff) << 8) | (in[off + 4] & 0xff);
+        if (size < 0 || size > MAX_SIZE || size > (long) (len - HEADER) * MAX_RATIO) {
+            logger.severe("bad decompressed size " + size);
+            return null;
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        try {
+            inflater.setDictionary(CHAT_V1_DICTIONARY);
+            inflater.setInput(in, off + HEADER, len - HEADER);
+            byte[] out = new byte[size];
+            int n = 0;
+            while (n < size) {
+                int got = inflater.inflate(out, n, size - n);
+                if (got == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+            }
+            // Exactly size bytes, and then the end of the stream.
+            if (n != size || (!inflater.finished() && inflater.inflate(new byte[1]) != 0) || !inflater.finished()) {
+                logger.severe("decompressed size doesn't match");
+                return null;
+            }
+            return out;
+        } catch (DataFormatException | IllegalArgumentException e) {
+            logger.severe("decompressing: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The NaCl primitives we use: XSalsa20-Poly1305 secret boxes, Ed25519 signatures and random
+ * bytes.  Buffers follow NaCl's conventions, as TweetNaclFast's static functions do: secretbox
+ * plaintexts start with ZERO_BYTES zeros and ciphertexts with BOX_ZERO_BYTES zeros, and signed
+ * messages are the signature followed by the message.
+ *
+ * get() returns libsodium (through lazysodium) if its native library loads on this device, and
+ * TweetNaclFast otherwise.
+ */
+public abstract class CryptoProvider {
+    private static final Logger logger = Logger.getLogger("cabalee.crypto");
+    public static final int KEY_BYTES = 32;
+    public static final int NONCE_BYTES = 24;
+    public static final int ZERO_BYTES = 32;
+    public static final int BOX_ZERO_BYTES = 16;
+    public static final int MAC_BYTES = ZERO_BYTES - BOX_ZERO_BYTES;
+    public static final int SEED_BYTES = 32;
+    public static final int PUBLIC_KEY_BYTES = 32;
+    public static final int SECRET_KEY_BYTES = 64;
+    public static final int SIGNATURE_BYTES = 64;
+    // Per-thread copies bigger than this are dropped after use rather than kept for the thread.
+    static final int MAX_RETAINED = 64 * 1024;
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    public abstract String name();
+
+    /** Encrypts m[0:len] into c[0:len]; both start with their NaCl zero padding. */
+    public abstract boolean secretbox(byte[] c, byte[] m, int len, byte[] nonce, byte[] key);
+
+    /** Decrypts c[0:len] into m[0:len], returning false if c was forged or corrupted. */
+    public abstract boolean secretboxOpen(byte[] m, byte[] c, int len, byte[] nonce, byte[] key);
+
+    /** Fills publicKey and secretKey with the keypair derived from seed. */
+    public abstract void signKeyPair(byte[] publicKey, byte[] secretKey, byte[] seed);
+
+    /** Writes the signature of m[off:off+len], followed by the message, to signed[0:len+SIGNATURE_BYTES]. */
+    public abstract void sign(byte[] signed, byte[] m, int off, int len, byte[] secretKey);
+
+    /** Checks signed[off:off+len], a signature followed by its message. */
+    public abstract boolean verify(byte[] signed, int off, int len, byte[] publicKey);
+
+    public abstract void randomBytes(byte[] out);
+
+    /**
+     * Bytes this provider has allocated for copies of its own, not counting whatever the
+     * primitives under it allocate internally.
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    protected void allocated(long bytes) {
+        allocatedBytes.addAndGet(bytes);
+    }
+
+    private static final CryptoProvider tweetNacl = new TweetNaclCrypto();
+    private static final CryptoProvider sodium = SodiumCrypto.load();
+    private static final CryptoProvider preferred = sodium != null ? sodium : tweetNacl;
+
+    static {
+        logger.info("using " + preferred.name() + " for crypto");
+    }
+
+    public static CryptoProvider get() {
+        return preferred;
+    }
+
+    /** Every provider that works here, preferred first. */
+    public static List<CryptoProvider> available() {
+        List<CryptoProvider> out = new ArrayList<>();
+        if (sodium != null) {
+            out.add(sodium);
+        }
+        out.add(tweetNacl);
+        return out;
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Splits boxes too big for a single frame into fragments, each sealed on its own with the cabal
+ * key so a receiver can check it before writing it anywhere, and opens them again.  The box
+ * itself is left as it is, so the reassembled one is opened and verified like any other.
+ *
+ * Sealed fragment: [nonce] [secretbox: [object ID (16)] [index (4)] [count (4)] [data]]
+ */
+public class Fragments {
+    private static final Logger logger = Logger.getLogger("cabalee.fragments");
+    /** Largest frame any comm will carry. */
+    public static final int MAX_FRAME_BYTES = 32 * 1024;
+    public static final int OBJECT_ID_BYTES = 16;
+    private static final int HEADER = OBJECT_ID_BYTES + 4 + 4;
+    private static final int NONCE = CryptoProvider.NONCE_BYTES;
+    private static final int ZERO = CryptoProvider.ZERO_BYTES;
+    private static final int BOX_ZERO = CryptoProvider.BOX_ZERO_BYTES;
+    /** Data carried by every fragment but the last, leaving room for type, tag and sealing. */
+    public static final int DATA_BYTES = MAX_FRAME_BYTES - 1 - Cabal.ROUTING_TAG_SIZE - NONCE - CryptoProvider.MAC_BYTES - HEADER;
+    /**
+     * Boxes are limited to this many fragments, or about 256KB.  A reassembled box is read back
+     * into memory and opened in scratch buffers three times its size, and kept in a message log of
+     * 1MB segments, so anything much bigger would cost more than it's worth.
+     */
+    public static final int MAX_FRAGMENTS = 8;
+    public static final int MAX_BOX_BYTES = MAX_FRAGMENTS * DATA_BYTES;
+
+    public static class Fragment {
+        public final ByteString objectID;
+        public final int index;
+        public final int count;
+        public final ByteString data;
+
+        Fragment(ByteString objectID, int index, int count, ByteString data) {
+            this.objectID = objectID;
+            this.index = index;
+            this.count = count;
+            this.data = data;
+        }
+    }
+
+    /** Whether box, sent tagged, would be too big for a frame. */
+    public static boolean needed(ByteString box) {
+        return 1 + Cabal.ROUTING_TAG_SIZE + box.size() > MAX_FRAME_BYTES;
+    }
+
+    /** Splits box into sealed fragments, in order. */
+    public static List<ByteString> split(ByteString box, byte[] key) {
+        int count = (box.size() + DATA_BYTES - 1) / DATA_BYTES;
+        Util.checkArgument(count <= MAX_FRAGMENTS, "box too big to fragment: " + box.size());
+        byte[] objectID = new byte[OBJECT_ID_BYTES];
+        Util.randomBytes(objectID);
+        byte[] nonce = new byte[NONCE];
+        byte[] plain = new byte[ZERO + HEADER + DATA_BYTES];
+        byte[] cipher = new byte[plain.length];
+        List<ByteString> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int off = i * DATA_BYTES;
+            int size = Math.min(DATA_BYTES, box.size() - off);
+            ByteBuffer b = ByteBuffer.wrap(plain, ZERO, HEADER);
+            b.put(objectID).putInt(i).putInt(count);
+            box.substring(off, off + size).copyTo(plain, ZERO + HEADER);
+            int plainSize = ZERO + HEADER + size;
+            Util.randomBytes(nonce);
+            if (!CryptoProvider.get().secretbox(cipher, plain, plainSize, nonce, key)) {
+                throw new RuntimeException("secretbox failed");
+            }
+            out.add(ByteString.copyFrom(nonce).concat(ByteString.copyFrom(cipher, BOX_ZERO, plainSize - BOX_ZERO)));
+        }
+        return out;
+    }
+
+    /** Opens a sealed fragment, returning null if it isn't one of ours or doesn't make sense. */
+    public static Fragment open(ByteString body, byte[] key) {
+        if (body.size() < NONCE + CryptoProvider.MAC_BYTES + HEADER || body.size() > MAX_FRAME_BYTES) {
+            logger.severe("bad fragment size " + body.size());
+            return null;
+        }
+        int boxSize = BOX_ZERO + body.size() - NONCE;
+        byte[] nonce = body.substring(0, NONCE).toByteArray();
+        byte[] cipher = new byte[boxSize];
+        body.substring(NONCE).copyTo(cipher, BOX_ZERO);
+        byte[] plain = new byte[boxSize];
+        if (!CryptoProvider.get().secretboxOpen(plain, cipher, boxSize, nonce, key)) {
+            logger.severe("failed to open fragment");
+            return null;
+        }
+        ByteBuffer b = ByteBuffer.wrap(plain, ZERO + OBJECT_ID_BYTES, 8);
+        int index = b.getInt();
+        int count = b.getInt();
+        int size = boxSize - ZERO - HEADER;
+        if (count < 2 || count > MAX_FRAGMENTS || index < 0 || index >= count
+                || (index < count - 1 ? size != DATA_BYTES : size < 1 || size > DATA_BYTES)) {
+            logger.severe("bad fragment " + index + " of " + count + " with " + size + " bytes");
+            return null;
+        }
+        return new Fragment(
+                ByteString.copyFrom(plain, ZERO, OBJECT_ID_BYTES),
+                index, count, ByteString.copyFrom(plain, ZERO + HEADER, size));
+    }
+}
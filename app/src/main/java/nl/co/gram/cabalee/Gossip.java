@@ -0,0 +1,161 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Decides whether to relay a transport, so that in dense meshes each one doesn't cross every
+ * link several times.  A relayed transport is held for a random delay, during which copies of
+ * it arriving from other peers are counted; it's dropped if enough copies were heard (someone
+ * nearby has evidently relayed it already), and otherwise forwarded with a probability that
+ * falls as the number of peers we'd forward it to rises.  Our own transports are always sent.
+ *
+ * Fragments are never dropped by chance.  A message is lost if any one of its fragments is, and
+ * nothing asks for a missing one again, so a per-fragment chance would compound over every
+ * fragment of a large message.  Hearing enough copies still suppresses them.
+ */
+public class Gossip {
+    private static final Logger logger = Logger.getLogger("cabalee.gossip");
+    private static final int LOG_EVERY = 100;
+
+    public static class Config {
+        /** Up to this many peers, relays always go out (if not suppressed). */
+        public final int lowDegree;
+        /** The forwarding probability never falls below this, however many peers we have. */
+        public final double minProbability;
+        /** Relays are suppressed once this many copies have been heard, 0 meaning never. */
+        public final int suppressAfterCopies;
+        /** Relays are held for a uniformly random time up to this long. */
+        public final long maxDelayMillis;
+
+        public Config(int lowDegree, double minProbability, int suppressAfterCopies, long maxDelayMillis) {
+            Util.checkArgument(lowDegree > 0, "lowDegree must be positive");
+            Util.checkArgument(minProbability > 0 && minProbability <= 1, "minProbability must be in (0, 1]");
+            Util.checkArgument(suppressAfterCopies >= 0, "suppressAfterCopies must not be negative");
+            Util.checkArgument(maxDelayMillis >= 0, "maxDelayMillis must not be negative");
+            this.lowDegree = lowDegree;
+            this.minProbability = minProbability;
+            this.suppressAfterCopies = suppressAfterCopies;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+    }
+
+    /** Relay everything, immediately, as we always used to. */
+    public static final Config FLOOD = new Config(Integer.MAX_VALUE, 1, 0, 0);
+    public static final Config ADAPTIVE = new Config(3, 0.4, 3, 60);
+
+    private final Config config;
+    // Copies heard of each transport being held, including the first.
+    private final Map<ByteString, Integer> held = new HashMap<>();
+    private long transports = 0;
+    private long relayed = 0;
+    private long suppressedByCopies = 0;
+    private long suppressedByChance = 0;
+    private long fragmentsRelayed = 0;
+    private long transmissions = 0;
+    private long alreadyKnown = 0;
+
+    public Gossip(Config config) {
+        this.config = config;
+    }
+
+    public Config config() {
+        return config;
+    }
+
+    /** The chance of relaying to degree peers. */
+    public double forwardProbability(int degree) {
+        if (degree <= config.lowDegree) return 1;
+        return Math.max(config.minProbability, (double) config.lowDegree / degree);
+    }
+
+    /** How long to hold a relay, given random in [0, 1). */
+    public long delayMillis(double random) {
+        return (long) (random * config.maxDelayMillis);
+    }
+
+    /** Notes a new transport, and starts counting copies of it if it's to be held. */
+    public synchronized void heard(Transport t) {
+        transports++;
+        if (t.from() != null && config.maxDelayMillis > 0) {
+            held.put(t.id(), 1);
+        }
+        if (transports % LOG_EVERY == 0) {
+            logger.info(toString());
+        }
+    }
+
+    /** Notes a duplicate of a transport we already have. */
+    public synchronized void heardAgain(ByteString id) {
+        Integer copies = held.get(id);
+        if (copies != null) {
+            held.put(id, copies + 1);
+        }
+    }
+
+    /**
+     * Decides, once it's been held, whether to relay t to degree peers, given random in [0, 1).
+     * Our own transports always go.
+     */
+    public synchronized boolean decide(Transport t, int degree, double random) {
+        Integer copies = held.remove(t.id());
+        if (degree == 0) return false;
+        if (t.from() == null) return true;
+        if (config.suppressAfterCopies > 0 && copies != null && copies >= config.suppressAfterCopies) {
+            suppressedByCopies++;
+            return false;
+        }
+        if (t.type() == MsgType.CABAL_FRAGMENT_V1) {
+            fragmentsRelayed++;
+            relayed++;
+            return true;
+        }
+        if (random >= forwardProbability(degree)) {
+            suppressedByChance++;
+            return false;
+        }
+        relayed++;
+        return true;
+    }
+
+    /** Notes that a transport was sent on links links. */
+    public synchronized void transmitted(int links) {
+        transmissions += links;
+    }
+
+    /** Notes that sending a transport on links links was skipped because their peers have it. */
+    public synchronized void alreadyKnown(int links) {
+        alreadyKnown += links;
+    }
+
+    /** Link transmissions per distinct transport sent or received. */
+    public synchronized double transmissionsPerTransport() {
+        return transports == 0 ? 0 : (double) transmissions / transports;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "gossip: " + transports + " transports, " + relayed + " relayed, "
+                + suppressedByCopies + " suppressed by copies, " + suppressedByChance + " by chance, "
+                + fragmentsRelayed + " fragments relayed regardless of chance, "
+                + alreadyKnown + " links skipped as already known, "
+                + transmissionsPerTransport() + " transmissions per transport";
+    }
+}
@@ -0,0 +1,160 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * Invertible Bloom lookup table of 64-bit transport keys.  Two peers each build one over the
+ * transports they hold; subtracting one from the other leaves only the keys held by one side,
+ * which can be listed as long as there are no more than about two thirds as many of them as
+ * there are cells.  So the sketch to exchange is sized by how much the sets differ, not by how
+ * big they are.
+ */
+public class IdSketch {
+    private static final int HASHES = 3;
+    public static final int CELL_BYTES = 4 + 8 + 8;  // count, key sum, check sum
+    private final int[] counts;
+    private final long[] keySums;
+    private final long[] checkSums;
+
+    /** Whether a sketch can have this many cells: a positive multiple of the number of hashes. */
+    public static boolean validSize(int cells) {
+        return cells > 0 && cells % HASHES == 0;
+    }
+
+    public IdSketch(int cells) {
+        Util.checkArgument(validSize(cells), "cells must be a positive multiple of " + HASHES);
+        counts = new int[cells];
+        keySums = new long[cells];
+        checkSums = new long[cells];
+    }
+
+    public int cells() {
+        return counts.length;
+    }
+
+    /** The key a transport is known by in sketches: the first eight bytes of its ID. */
+    public static long key(ByteString transportID) {
+        long k = 0;
+        for (int i = 0; i < 8; i++) {
+            k |= (transportID.byteAt(i) & 0xffL) << (8 * i);
+        }
+        return k;
+    }
+
+    // SplitMix64's finalizer; keys are already hashes, so this only has to decorrelate uses.
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    private static long check(long key) {
+        return mix(key ^ 0x5bd1e9955bd1e995L);
+    }
+
+    // Each hash picks a cell in its own third of the table, so a key never lands twice in a cell.
+    private int cell(long key, int hash) {
+        int part = counts.length / HASHES;
+        return hash * part + (int) ((mix(key + hash * 0x9e3779b97f4a7c15L) >>> 1) % part);
+    }
+
+    private void update(long key, int by) {
+        long check = check(key);
+        for (int i = 0; i < HASHES; i++) {
+            int c = cell(key, i);
+            counts[c] += by;
+            keySums[c] ^= key;
+            checkSums[c] ^= check;
+        }
+    }
+
+    public void add(long key) {
+        update(key, 1);
+    }
+
+    /** Removes other's keys from this sketch; both must have the same number of cells. */
+    public void subtract(IdSketch other) {
+        Util.checkArgument(other.cells() == cells(), "sketch sizes differ");
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] -= other.counts[i];
+            keySums[i] ^= other.keySums[i];
+            checkSums[i] ^= other.checkSums[i];
+        }
+    }
+
+    private boolean pure(int c) {
+        return (counts[c] == 1 || counts[c] == -1) && checkSums[c] == check(keySums[c]);
+    }
+
+    /**
+     * Lists the keys left after subtract: those only this sketch had go in onlyHere, those only
+     * the subtracted one had in onlyThere.  Returns false if some couldn't be recovered, meaning a
+     * bigger sketch is needed.  Empties the sketch as it goes.
+     */
+    public boolean decode(Collection<Long> onlyHere, Collection<Long> onlyThere) {
+        ArrayDeque<Integer> pure = new ArrayDeque<>();
+        for (int c = 0; c < counts.length; c++) {
+            if (pure(c)) pure.add(c);
+        }
+        Integer c;
+        while ((c = pure.poll()) != null) {
+            if (!pure(c)) continue;
+            long key = keySums[c];
+            int count = counts[c];
+            (count > 0 ? onlyHere : onlyThere).add(key);
+            update(key, -count);
+            for (int i = 0; i < HASHES; i++) {
+                int d = cell(key, i);
+                if (pure(d)) pure.add(d);
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0 || keySums[i] != 0 || checkSums[i] != 0) return false;
+        }
+        return true;
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer b = ByteBuffer.allocate(counts.length * CELL_BYTES);
+        for (int i = 0; i < counts.length; i++) {
+            b.putInt(counts[i]);
+            b.putLong(keySums[i]);
+            b.putLong(checkSums[i]);
+        }
+        return b.array();
+    }
+
+    /** Parses a sketch from bytes[off:], returning null if that isn't one. */
+    public static IdSketch parse(ByteString bytes, int off) {
+        int size = bytes.size() - off;
+        if (size <= 0 || size % CELL_BYTES != 0 || (size / CELL_BYTES) % HASHES != 0) {
+            return null;
+        }
+        IdSketch s = new IdSketch(size / CELL_BYTES);
+        ByteBuffer b = bytes.substring(off).asReadOnlyByteBuffer();
+        for (int i = 0; i < s.counts.length; i++) {
+            s.counts[i] = b.getInt();
+            s.keySums[i] = b.getLong();
+            s.checkSums[i] = b.getLong();
+        }
+        return s;
+    }
+}
@@ -1,85 +1,90 @@
 package nl.co.gram.cabalee;
 
 import com.google.protobuf.ByteString;
-import com.iwebpp.crypto.TweetNaclFast;
+
+import java.util.Arrays;
 
 public class Identity {
     private final byte[] privateKey;
-    private final TweetNaclFast.Signature signature;
     private final PublicKey publicKey;
     public static final int SIGNED = 1;
     public static final int UNSIGNED = 0;
-    public static final int LENGTH = TweetNaclFast.Signature.publicKeyLength;
+    public static final int LENGTH = CryptoProvider.PUBLIC_KEY_BYTES;
 
     public Identity() {
-        byte[] seed = new byte[TweetNaclFast.Signature.seedLength];
+        byte[] seed = new byte[CryptoProvider.SEED_BYTES];
         Util.randomBytes(seed);
-        TweetNaclFast.Signature.KeyPair kp = TweetNaclFast.Signature.keyPair_fromSeed(seed);
-        privateKey = kp.getSecretKey();
-        signature = new TweetNaclFast.Signature(null, privateKey);
-        publicKey = new PublicKey(SIGNED, kp.getPublicKey());
+        byte[] pk = new byte[CryptoProvider.PUBLIC_KEY_BYTES];
+        privateKey = new byte[CryptoProvider.SECRET_KEY_BYTES];
+        CryptoProvider.get().signKeyPair(pk, privateKey, seed);
+        publicKey = new PublicKey(SIGNED, pk);
     }
 
     public Identity(byte[] anonymous) {
         privateKey = null;
-        signature = null;
         publicKey = new PublicKey(UNSIGNED, anonymous);
     }
 
     public int signingType() {
-        return signature == null ? UNSIGNED : SIGNED;
+        return privateKey == null ? UNSIGNED : SIGNED;
     }
 
     public byte[] sign(byte[] data) {
-        if (signature != null) {
-            return signature.sign(data);
-        }
-        byte[] out = new byte[data.length + TweetNaclFast.Signature.signatureLength];
-        for (int i = 0; i < data.length; i++) {
-            out[i] = data[i];
-        }
+        byte[] out = new byte[data.length + CryptoProvider.SIGNATURE_BYTES];
+        signInto(data, 0, data.length, out);
         return out;
     }
 
+    // Like sign, but writes the signed form of data[off:off+len] into signed[0:len+signatureLength].
+    void signInto(byte[] data, int off, int len, byte[] signed) {
+        if (privateKey != null) {
+            CryptoProvider.get().sign(signed, data, off, len, privateKey);
+            return;
+        }
+        System.arraycopy(data, off, signed, 0, len);
+        Arrays.fill(signed, len, len + CryptoProvider.SIGNATURE_BYTES, (byte) 0);
+    }
+
     public PublicKey publicKey() {
         return publicKey;
     }
 
     static class PublicKey {
         private final ByteString publicKey;
-        private final TweetNaclFast.Signature signature;
+        private final byte[] publicKeyBytes;
+        private final int type;
 
-        public static final int SIZE = TweetNaclFast.Signature.publicKeyLength;
-        public static final int OVERHEAD = 1 + PublicKey.SIZE + TweetNaclFast.Signature.signatureLength;
+        public static final int SIZE = CryptoProvider.PUBLIC_KEY_BYTES;
+        public static final int OVERHEAD = 1 + PublicKey.SIZE + CryptoProvider.SIGNATURE_BYTES;
 
         PublicKey(int type, byte[] publicKey) {
-            if (publicKey.length != TweetNaclFast.Signature.publicKeyLength) {
+            if (publicKey.length != CryptoProvider.PUBLIC_KEY_BYTES) {
                 throw new RuntimeException("invalid public key length: " + publicKey.length);
             }
             this.publicKey = ByteString.copyFrom(publicKey);
-            if (type == SIGNED) {
-                this.signature = new TweetNaclFast.Signature(publicKey, null);
-            } else {
-                this.signature = null;
-            }
+            this.publicKeyBytes = publicKey;
+            this.type = type == SIGNED ? SIGNED : UNSIGNED;
         }
 
         public int signingType() {
-            return signature == null ? UNSIGNED : SIGNED;
+            return type;
         }
 
         public ByteString identity() { return publicKey; }
 
         public byte[] open(byte[] data) {
-            if (signature != null) {
-                return signature.open(data);
-            }
-            if (data.length < TweetNaclFast.Signature.signatureLength) return null;
-            byte[] out = new byte[data.length - TweetNaclFast.Signature.signatureLength];
-            for (int i = 0; i < data.length - TweetNaclFast.Signature.signatureLength; i++) {
-                out[i] = data[i];
-            }
-            return out;
+            int off = openInPlace(data, 0, data.length);
+            if (off < 0) return null;
+            return Arrays.copyOfRange(data, off, off + data.length - CryptoProvider.SIGNATURE_BYTES);
+        }
+
+        // Verifies signed[off:off+len] in place, returning the offset within signed of the verified
+        // data (which is len-signatureLength long), or -1.
+        int openInPlace(byte[] signed, int off, int len) {
+            if (len < CryptoProvider.SIGNATURE_BYTES) return -1;
+            if (type == UNSIGNED) return off;
+            if (!CryptoProvider.get().verify(signed, off, len, publicKeyBytes)) return -1;
+            return off + CryptoProvider.SIGNATURE_BYTES;
         }
     }
 }
@@ -19,6 +19,9 @@ public class Intents {
     public static final String EXTRA_QR_TITLE = "nl.co.gram.cabalee.ExtraQrTitle";
     public static final String EXTRA_VISIBILITY = "nl.co.gram.cabalee.ExtraVisibility";
     public static final String EXTRA_ACTIVE_CONNECTIONS = "nl.co.gram.cabalee.ExtraActiveConnections";
+    public static final String EXTRA_SEQ = "nl.co.gram.cabalee.ExtraSeq";
+    public static final String EXTRA_FIRST_SEQ = "nl.co.gram.cabalee.ExtraFirstSeq";
+    public static final String EXTRA_COUNT = "nl.co.gram.cabalee.ExtraCount";
 
     public static final String PAYLOAD_RECEIVED = "nl.co.gram.cabalee.PayloadReceived";
     public static final String CABAL_VISIBILITY_CHANGED = "nl.co.gram.cabalee.CabalVisibilityChanged";
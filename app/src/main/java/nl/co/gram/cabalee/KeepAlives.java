@@ -0,0 +1,115 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when each link needs a keepalive: only once nothing has been sent on it for
+ * idleMillis, since any frame keeps it alive as well as a keepalive does.  Links are woken
+ * together rather than each on its own schedule: a wakeup is due when the first link's idle
+ * time runs out, and covers every link whose time would run out within alignMillis of it, so
+ * the radio comes up once for all of them.
+ *
+ * Links are only known to have sent something once a comm reports the write, which for a slow
+ * or dead peer may be much later or never.  So a keepalive handed out by due() counts as
+ * pending, and the link isn't due again until a whole idleMillis after it, written or not.
+ *
+ * Times are in milliseconds on any monotonic clock.
+ */
+public class KeepAlives {
+    private final long idleMillis;
+    private final long alignMillis;
+    private final long startMillis;
+    // When something was last sent on each link.
+    private final Map<String, Long> lastSent = new HashMap<>();
+    // When each link was last handed out by due(), whether or not the keepalive went out.
+    private final Map<String, Long> pending = new HashMap<>();
+    private long wakeups = 0;
+    private long sent = 0;
+    private long skipped = 0;
+
+    public KeepAlives(long idleMillis, long alignMillis, long nowMillis) {
+        Util.checkArgument(idleMillis > 0, "idleMillis must be positive");
+        Util.checkArgument(alignMillis >= 0 && alignMillis < idleMillis, "alignMillis must be in [0, idleMillis)");
+        this.idleMillis = idleMillis;
+        this.alignMillis = alignMillis;
+        this.startMillis = nowMillis;
+    }
+
+    /** Starts keeping comm alive, counting from now. */
+    public synchronized void added(String comm, long nowMillis) {
+        lastSent.put(comm, nowMillis);
+    }
+
+    /** Notes that something was sent on comm, if it's one we're keeping alive. */
+    public synchronized void sent(String comm, long nowMillis) {
+        if (lastSent.containsKey(comm)) {
+            lastSent.put(comm, nowMillis);
+        }
+    }
+
+    public synchronized void removed(String comm) {
+        lastSent.remove(comm);
+        pending.remove(comm);
+    }
+
+    // The later of what was last sent on comm and its last pending keepalive.
+    private long last(Map.Entry<String, Long> entry) {
+        Long queued = pending.get(entry.getKey());
+        return queued == null ? entry.getValue() : Math.max(queued, entry.getValue());
+    }
+
+    /** The links that need a keepalive now, counting this as a wakeup if there are any. */
+    public synchronized List<String> due(long nowMillis) {
+        List<String> out = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : lastSent.entrySet()) {
+            if (nowMillis - last(entry) >= idleMillis - alignMillis) {
+                out.add(entry.getKey());
+            }
+        }
+        for (String comm : out) {
+            pending.put(comm, nowMillis);
+        }
+        if (!out.isEmpty()) {
+            wakeups++;
+            sent += out.size();
+            skipped += lastSent.size() - out.size();
+        }
+        return out;
+    }
+
+    /** How long until the next link needs a keepalive, or idleMillis if there are no links. */
+    public synchronized long delayMillis(long nowMillis) {
+        long next = nowMillis + idleMillis;
+        for (Map.Entry<String, Long> entry : lastSent.entrySet()) {
+            next = Math.min(next, last(entry) + idleMillis);
+        }
+        return Math.max(0, next - nowMillis);
+    }
+
+    /** Wakeups saved so far over sending to every link every idleMillis. */
+    public synchronized long wakeupsSaved(long nowMillis) {
+        return Math.max(0, (nowMillis - startMillis) / idleMillis - wakeups);
+    }
+
+    public synchronized String toString(long nowMillis) {
+        return "keepalives: " + sent + " sent in " + wakeups + " wakeups, " + skipped
+                + " skipped for recent traffic, " + wakeupsSaved(nowMillis) + " wakeups saved";
+    }
+}
@@ -0,0 +1,52 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recent transports a single peer is known to have, because it sent them to us, so we
+ * don't send them back.  Holds IdSketch keys rather than whole IDs, and forgets the oldest once
+ * full; unlike RecentIDFilter it has no false positives to speak of, since a wrong answer here
+ * means a peer never gets a transport.
+ */
+public class KnownIDs {
+    private final LinkedHashMap<Long, Boolean> keys;
+
+    public KnownIDs(final int maxEntries) {
+        Util.checkArgument(maxEntries > 0, "maxEntries must be positive");
+        keys = new LinkedHashMap<Long, Boolean>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized void add(ByteString transportID) {
+        keys.put(IdSketch.key(transportID), Boolean.TRUE);
+    }
+
+    public synchronized boolean contains(ByteString transportID) {
+        return keys.containsKey(IdSketch.key(transportID));
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+}
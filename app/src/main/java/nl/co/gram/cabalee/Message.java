@@ -6,11 +6,18 @@ public class Message {
     public final Payload payload;
     public final Identity.PublicKey from;
     public final Date received;
+    // Position in the cabal's MessageLog, or -1 if it isn't kept.
+    public final long seq;
 
     public Message(Payload payload, Identity.PublicKey from) {
+        this(payload, from, new Date(), -1);
+    }
+
+    public Message(Payload payload, Identity.PublicKey from, Date received, long seq) {
         this.payload = payload;
         this.from = from;
-        this.received = new Date();
+        this.received = received;
+        this.seq = seq;
     }
 
     @Override
@@ -18,6 +25,6 @@ public class Message {
         if (other == null) return false;
         if (!getClass().equals(other.getClass())) return false;
         Message o = (Message) other;
-        return this.payload.equals(o.payload) && this.from.identity().equals(o.from.identity()) && this.received.equals(o.received);
+        return this.payload.equals(o.payload) && this.from.identity().equals(o.from.identity()) && this.received.equals(o.received) && this.seq == o.seq;
     }
 }
@@ -0,0 +1,234 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import android.content.Context;
+
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of a cabal's boxed messages, kept off the Java heap.
+ *
+ * Records live in fixed-size, memory-mapped segments, each with a compact index of record
+ * offsets, and are numbered with sequence numbers that only ever increase.  Whole segments are
+ * dropped, oldest first, once the log is over its size budget or their newest record is older
+ * than the maximum age.  A record too big for a segment is refused rather than given a bigger
+ * segment of its own, which would push the rest of the history out.
+ *
+ * Segment files are unlinked as soon as they're mapped, so the log is gone when the process is:
+ * only the mappings keep the data reachable, and the boxes in it can't be opened without the
+ * cabal key, which only ever lives in memory.
+ */
+public class MessageLog {
+    private static final Logger logger = Logger.getLogger("cabalee.messagelog");
+    private static final int RECORD_HEADER = 4 + 8;  // length, received millis
+    private final File dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long nextSeq = 0;
+
+    public static class Entry {
+        public final long seq;
+        public final long receivedMillis;
+        public final ByteString boxed;
+
+        Entry(long seq, long receivedMillis, ByteString boxed) {
+            this.seq = seq;
+            this.receivedMillis = receivedMillis;
+            this.boxed = boxed;
+        }
+    }
+
+    private static class Segment {
+        final long firstSeq;
+        final MappedByteBuffer map;
+        // Replaced as it grows, and read by snapshots without the lock.
+        volatile int[] offsets = new int[64];
+        int count = 0;
+        int end = 0;
+        long newestMillis = 0;
+
+        Segment(long firstSeq, MappedByteBuffer map) {
+            this.firstSeq = firstSeq;
+            this.map = map;
+        }
+
+        boolean fits(int size) {
+            return map.capacity() - end >= RECORD_HEADER + size;
+        }
+
+        // Only called with the log locked; readers only look at records below count.
+        void append(ByteString boxed, long receivedMillis) {
+            int[] o = offsets;
+            if (count == o.length) {
+                o = Arrays.copyOf(o, count * 2);
+            }
+            ByteBuffer b = map.duplicate();
+            b.position(end);
+            b.putInt(boxed.size());
+            b.putLong(receivedMillis);
+            b.put(boxed.asReadOnlyByteBuffer());
+            o[count++] = end;
+            offsets = o;
+            end = b.position();
+            newestMillis = Math.max(newestMillis, receivedMillis);
+        }
+
+        Entry read(int index) {
+            ByteBuffer b = map.duplicate();
+            b.position(offsets[index]);
+            int size = b.getInt();
+            long receivedMillis = b.getLong();
+            b.limit(b.position() + size);
+            return new Entry(firstSeq + index, receivedMillis, ByteString.copyFrom(b));
+        }
+    }
+
+    /**
+     * A consistent, read-only range of the log.  It holds on to its segments, so its records stay
+     * readable even if retention drops them from the log meanwhile.
+     */
+    public static class Snapshot {
+        private final List<Segment> segments;
+        public final long firstSeq;
+        public final long endSeq;
+
+        private Snapshot(List<Segment> segments, long firstSeq, long endSeq) {
+            this.segments = segments;
+            this.firstSeq = firstSeq;
+            this.endSeq = endSeq;
+        }
+
+        public int size() {
+            return (int) (endSeq - firstSeq);
+        }
+
+        public Entry read(long seq) {
+            Util.checkArgument(seq >= firstSeq && seq < endSeq, "sequence number out of range");
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment s = segments.get(i);
+                if (seq >= s.firstSeq) {
+                    return s.read((int) (seq - s.firstSeq));
+                }
+            }
+            throw new IllegalStateException("no segment for " + seq);
+        }
+    }
+
+    public MessageLog(File dir, int segmentBytes, long maxBytes, long maxAgeMillis) {
+        Util.checkArgument(segmentBytes > RECORD_HEADER, "segmentBytes too small");
+        Util.checkArgument(maxBytes >= segmentBytes, "maxBytes must hold at least one segment");
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /** Where segment files are created, briefly, before being unlinked. */
+    public static File dir(Context context) {
+        return new File(context.getCacheDir(), "cabal-logs");
+    }
+
+    /** Removes segment files left behind if we died between creating and unlinking one. */
+    public static void wipe(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (!f.delete()) {
+                logger.severe("unable to delete " + f);
+            }
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create " + dir);
+        }
+        File f = File.createTempFile("log", ".seg", dir);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(segmentBytes);
+            return new Segment(nextSeq, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        } finally {
+            if (!f.delete()) {
+                logger.severe("unable to unlink " + f);
+            }
+        }
+    }
+
+    private long bytesUsed() {
+        long total = 0;
+        for (Segment s : segments) {
+            total += s.map.capacity();
+        }
+        return total;
+    }
+
+    private void applyRetention(long nowMillis) {
+        while (segments.size() > 1 &&
+                (bytesUsed() > maxBytes || segments.peekFirst().newestMillis < nowMillis - maxAgeMillis)) {
+            Segment gone = segments.pollFirst();
+            logger.info("dropping " + gone.count + " messages from log");
+        }
+    }
+
+    /** Appends a boxed message, returning its sequence number. */
+    public synchronized long append(ByteString boxed, long receivedMillis) throws IOException {
+        if (RECORD_HEADER + boxed.size() > segmentBytes) {
+            throw new IOException("record of " + boxed.size() + " bytes too big for the log");
+        }
+        Segment last = segments.peekLast();
+        if (last == null || !last.fits(boxed.size())) {
+            last = newSegment();
+            segments.addLast(last);
+        }
+        last.append(boxed, receivedMillis);
+        applyRetention(receivedMillis);
+        return nextSeq++;
+    }
+
+    /** Sequence number of the oldest record still retained. */
+    public synchronized long firstSeq() {
+        Segment first = segments.peekFirst();
+        return first == null ? nextSeq : first.firstSeq;
+    }
+
+    /** Sequence number the next record will get. */
+    public synchronized long endSeq() {
+        return nextSeq;
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(new ArrayList<>(segments), firstSeq(), nextSeq);
+    }
+
+    /** Drops everything; the memory goes once the last snapshot is gone. */
+    public synchronized void clear() {
+        segments.clear();
+    }
+}
@@ -30,6 +30,18 @@ public class NearbyComm extends PayloadCallback implements Comm {
     private final String remote;
     private State state = State.STARTING;
     private final NearbyCommCenter commCenter;
+    // Every Nearby payload is a binder call and a round of headers and acks however small it is,
+    // so once the peer has said it can unpack them, frames are sent in batches: as soon as there
+    // are BATCH_FLUSH_BYTES, or BATCH_WINDOW_MILLIS after the first of them was queued.
+    private static final long BATCH_WINDOW_MILLIS = 10;
+    private static final int BATCH_FLUSH_BYTES = 16 * 1024;
+    private Batcher batcher = null;
+    private final Runnable flushBatch = new Runnable() {
+        @Override
+        public void run() {
+            batcher(null).flush();
+        }
+    };
 
     public enum State {
         STARTING,
@@ -61,12 +73,33 @@ public class NearbyComm extends PayloadCallback implements Comm {
         return remote;
     }
 
-    @Override
-    public void sendPayload(ByteString payload) {
-        commCenter.sendPayload(payload, remote);
+    // Created on first use for a link whose mode allows batching.
+    private synchronized Batcher batcher(Capabilities mode) {
+        if (batcher == null) {
+            batcher = new Batcher(mode.maxFrameBytes, Math.min(BATCH_FLUSH_BYTES, mode.maxFrameBytes), new Batcher.Sink() {
+                @Override
+                public void send(ByteString frame) {
+                    commCenter.sendPayload(frame, NearbyComm.this);
+                }
+            });
+        }
+        return batcher;
     }
 
+    synchronized String batchStats() {
+        return batcher == null ? "unbatched" : batcher.toString();
+    }
 
+    @Override
+    public void sendPayload(ByteString payload, SendQueue.Priority priority) {
+        // Nearby Connections keeps its own queue; we have no say in its ordering.
+        Capabilities mode = commCenter.commCenter().mode(name());
+        if (!mode.has(Capabilities.BATCHING)) {
+            commCenter.sendPayload(payload, this);
+        } else if (batcher(mode).add(payload)) {
+            commCenter.handler().postDelayed(flushBatch, BATCH_WINDOW_MILLIS);
+        }
+    }
 
     private void handlePayload(@NonNull Payload payload) throws IOException {
         switch (payload.getType()) {
@@ -56,6 +56,8 @@ public class NearbyCommCenter extends ConnectionLifecycleCallback {
 
     public CommCenter commCenter() { return commCenter; }
 
+    Handler handler() { return handler; }
+
     private synchronized NearbyComm commFor(String remote) {
         NearbyComm c = commsByRemote.get(remote);
         if (c == null) {
@@ -85,14 +87,17 @@ public class NearbyCommCenter extends ConnectionLifecycleCallback {
                 connectionsClient.disconnectFromEndpoint(c.remote());
                 break;
             case DISCONNECTED:
+                logger.info(c.name() + " " + c.batchStats());
                 commCenter.removeComm(c);
                 commsByRemote.remove(c.remote());
                 break;
         }
     }
 
-    void sendPayload(ByteString bs, String remote) {
-        connectionsClient.sendPayload(remote, Payload.fromBytes(bs.toByteArray()));
+    void sendPayload(ByteString bs, NearbyComm c) {
+        // Nearby queues the payload itself, so only its success means the link carried it.
+        connectionsClient.sendPayload(c.remote(), Payload.fromBytes(bs.toByteArray()))
+                .addOnSuccessListener((Void unused) -> commCenter.wrote(c.name()));
     }
 
     @Override
@@ -0,0 +1,83 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Bounded LRU of the public keys we've seen messages from, so the handful of people talking in
+ * a cabal don't cost a new PublicKey and verifier for every message they send.
+ */
+public class PublicKeyCache {
+    private static final Logger logger = Logger.getLogger("cabalee.keycache");
+    private static final int LOG_EVERY = 1000;
+    private final LinkedHashMap<ByteString, Identity.PublicKey> keys;
+    private long hits = 0;
+    private long misses = 0;
+
+    public PublicKeyCache(final int maxEntries) {
+        Util.checkArgument(maxEntries > 0, "maxEntries must be positive");
+        keys = new LinkedHashMap<ByteString, Identity.PublicKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteString, Identity.PublicKey> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** Shared by everything that unboxes messages. */
+    public static final PublicKeyCache INSTANCE = new PublicKeyCache(256);
+
+    /** Returns the key whose signing type is in[off] and whose identity is in[off+1:off+1+SIZE]. */
+    public Identity.PublicKey get(byte[] in, int off) {
+        ByteString header = ByteString.copyFrom(in, off, 1 + Identity.PublicKey.SIZE);
+        synchronized (this) {
+            Identity.PublicKey key = keys.get(header);
+            if (key != null) {
+                hits++;
+                maybeLog();
+                return key;
+            }
+            misses++;
+            maybeLog();
+        }
+        byte[] identity = new byte[Identity.PublicKey.SIZE];
+        System.arraycopy(in, off + 1, identity, 0, identity.length);
+        Identity.PublicKey key = new Identity.PublicKey(in[off], identity);
+        synchronized (this) {
+            keys.put(header, key);
+        }
+        return key;
+    }
+
+    private void maybeLog() {
+        if ((hits + misses) % LOG_EVERY == 0) {
+            logger.info("public key cache: " + keys.size() + " keys, hit rate " + hitRate());
+        }
+    }
+
+    public synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+}
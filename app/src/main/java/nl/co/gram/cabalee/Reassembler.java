@@ -0,0 +1,178 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import android.content.Context;
+
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Puts fragmented boxes back together.  Fragments are written straight to a temporary file as
+ * they arrive, in whatever order, with a bitmap of which are in, so nothing but the finished box
+ * is ever held in memory.  Like MessageLog's segments, the files are unlinked as soon as they're
+ * opened.  Boxes that stop getting fragments are given up on after a while, as is the oldest
+ * when too many are under way.
+ */
+public class Reassembler {
+    private static final Logger logger = Logger.getLogger("cabalee.reassembler");
+    private final File dir;
+    private final int maxPending;
+    private final long maxIdleMillis;
+    private final Map<ByteString, Reassembly> pending = new HashMap<>();
+
+    private static class Reassembly {
+        final RandomAccessFile file;
+        final FileChannel channel;
+        final BitSet have;
+        final int count;
+        long size = -1;
+        long touchedMillis;
+
+        Reassembly(RandomAccessFile file, int count) {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.have = new BitSet(count);
+            this.count = count;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.severe("closing reassembly: " + e.getMessage());
+            }
+        }
+    }
+
+    public Reassembler(File dir, int maxPending, long maxIdleMillis) {
+        Util.checkArgument(maxPending > 0, "maxPending must be positive");
+        this.dir = dir;
+        this.maxPending = maxPending;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /** Where reassembly files are created, briefly, before being unlinked. */
+    public static File dir(Context context) {
+        return new File(context.getCacheDir(), "cabal-fragments");
+    }
+
+    private RandomAccessFile newFile() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create " + dir);
+        }
+        File f = File.createTempFile("box", ".part", dir);
+        try {
+            return new RandomAccessFile(f, "rw");
+        } finally {
+            if (!f.delete()) {
+                logger.severe("unable to unlink " + f);
+            }
+        }
+    }
+
+    private void expire(long nowMillis) {
+        Iterator<Reassembly> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Reassembly r = it.next();
+            if (r.touchedMillis < nowMillis - maxIdleMillis) {
+                logger.info("giving up on box with " + r.have.cardinality() + " of " + r.count + " fragments");
+                r.close();
+                it.remove();
+            }
+        }
+    }
+
+    private void dropOldest() {
+        Map.Entry<ByteString, Reassembly> oldest = null;
+        for (Map.Entry<ByteString, Reassembly> e : pending.entrySet()) {
+            if (oldest == null || e.getValue().touchedMillis < oldest.getValue().touchedMillis) {
+                oldest = e;
+            }
+        }
+        if (oldest != null) {
+            logger.info("too many boxes being reassembled, dropping one");
+            oldest.getValue().close();
+            pending.remove(oldest.getKey());
+        }
+    }
+
+    /** Adds a fragment, returning the whole box once the last is in, and otherwise null. */
+    public synchronized ByteString add(Fragments.Fragment f, long nowMillis) throws IOException {
+        expire(nowMillis);
+        Reassembly r = pending.get(f.objectID);
+        if (r == null) {
+            if (pending.size() >= maxPending) {
+                dropOldest();
+            }
+            r = new Reassembly(newFile(), f.count);
+            pending.put(f.objectID, r);
+        } else if (r.count != f.count) {
+            logger.severe("fragment count changed from " + r.count + " to " + f.count);
+            return null;
+        }
+        r.touchedMillis = nowMillis;
+        if (r.have.get(f.index)) {
+            return null;
+        }
+        long off = (long) f.index * Fragments.DATA_BYTES;
+        ByteBuffer data = f.data.asReadOnlyByteBuffer();
+        int start = data.position();
+        while (data.hasRemaining()) {
+            r.channel.write(data, off + data.position() - start);
+        }
+        r.have.set(f.index);
+        if (f.index == r.count - 1) {
+            r.size = off + f.data.size();
+        }
+        if (r.have.cardinality() < r.count) {
+            return null;
+        }
+        pending.remove(f.objectID);
+        try {
+            r.channel.position(0);
+            ByteString box = ByteString.readFrom(Channels.newInputStream(r.channel));
+            if (box.size() != r.size) {
+                throw new IOException("reassembled " + box.size() + " bytes, expected " + r.size);
+            }
+            return box;
+        } finally {
+            r.close();
+        }
+    }
+
+    /** Number of boxes partly reassembled. */
+    public synchronized int pending() {
+        return pending.size();
+    }
+
+    public synchronized void clear() {
+        for (Reassembly r : pending.values()) {
+            r.close();
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate, fixed-memory set of transport IDs, used to drop transports we've recently seen.
+ *
+ * Each generation is a split-block Bloom filter held in a primitive long array: an ID's 64-bit
+ * fingerprint picks one block of eight words and sets one bit in each, so lookups touch a single
+ * cache line and inserts are lock-free compareAndSets rather than a lock around every receive.
+ * Generations rotate on a timer, or early if one fills past the number of IDs it can hold
+ * within the false-positive budget, so memory stays flat however much traffic arrives.
+ *
+ * Times are in nanoseconds on any monotonic clock.
+ */
+public class RecentIDFilter {
+    private static final int BLOCK_WORDS = 8;
+    private static final int[] SALTS = {
+            0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d,
+            0x705495c7, 0x2df1424b, 0x9efc4947, 0x5c6bfb31};
+    private final long rotateAfterNanos;
+    private final AtomicLongArray[] generations;
+    private final AtomicInteger[] counts;
+    private final int blockMask;
+    private final int capacity;
+    private volatile int current = 0;
+    private volatile long currentStartedNanos;
+
+    /**
+     * @param rotateAfterNanos how long each generation accepts inserts before rotating
+     * @param numGenerations   generations remembered, so IDs are kept for about numGenerations * rotateAfterNanos
+     * @param expectedPerGeneration number of IDs a generation is sized for
+     * @param falsePositiveRate target chance of treating a new ID as already seen
+     * @param maxBytes         hard ceiling on memory used by all generations together
+     * @param nowNanos         when the first generation starts
+     */
+    public RecentIDFilter(long rotateAfterNanos, int numGenerations, int expectedPerGeneration, double falsePositiveRate, int maxBytes, long nowNanos) {
+        Util.checkArgument(rotateAfterNanos > 0, "rotateAfterNanos must be positive");
+        Util.checkArgument(numGenerations >= 1, "need at least one generation");
+        Util.checkArgument(expectedPerGeneration >= 1, "expectedPerGeneration must be positive");
+        Util.checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "falsePositiveRate must be in (0, 1)");
+        Util.checkArgument(maxBytes >= numGenerations * BLOCK_WORDS * 8, "maxBytes too small");
+        this.rotateAfterNanos = rotateAfterNanos;
+
+        // Every check looks at all generations, so each gets an equal share of the budget.  The
+        // extra 50% makes up for the worse accuracy of confining each ID to a single block.
+        double perGeneration = falsePositiveRate / numGenerations;
+        double bitsPerID = 1.5 * -Math.log(perGeneration) / (Math.log(2) * Math.log(2));
+        int blocks = 1;
+        while (blocks < (1 << 24) && blocks * BLOCK_WORDS * 64 < expectedPerGeneration * bitsPerID) {
+            blocks <<= 1;
+        }
+        while (blocks > 1 && blocks * BLOCK_WORDS * 8 * numGenerations > maxBytes) {
+            blocks >>= 1;
+        }
+        blockMask = blocks - 1;
+        capacity = Math.max(1, (int) (blocks * BLOCK_WORDS * 64 / bitsPerID));
+        int words = blocks * BLOCK_WORDS;
+
+        generations = new AtomicLongArray[numGenerations];
+        counts = new AtomicInteger[numGenerations];
+        for (int i = 0; i < numGenerations; i++) {
+            generations[i] = new AtomicLongArray(words);
+            counts[i] = new AtomicInteger();
+        }
+        currentStartedNanos = nowNanos;
+    }
+
+    private static long fingerprint(ByteString id) {
+        long fp = 0;
+        for (int i = 0; i < 8 && i < id.size(); i++) {
+            fp |= (0xFFL & (long) id.byteAt(i)) << (i * 8);
+        }
+        return fp;
+    }
+
+    private static long bit(long fp, int word) {
+        return 1L << ((((int) fp) * SALTS[word]) >>> 26);
+    }
+
+    private static boolean contains(AtomicLongArray words, int block, long fp) {
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            long bit = bit(fp, i);
+            if ((words.get(block + i) & bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns true if every bit was already set.
+    private static boolean add(AtomicLongArray words, int block, long fp) {
+        boolean present = true;
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            long bit = bit(fp, i);
+            while (true) {
+                long old = words.get(block + i);
+                if ((old & bit) != 0) {
+                    break;
+                }
+                present = false;
+                if (words.compareAndSet(block + i, old, old | bit)) {
+                    break;
+                }
+            }
+        }
+        return present;
+    }
+
+    private void maybeRotate(long elapsedNanos) {
+        if (elapsedNanos - currentStartedNanos < rotateAfterNanos && counts[current].get() < capacity) {
+            return;
+        }
+        synchronized (this) {
+            if (elapsedNanos - currentStartedNanos < rotateAfterNanos && counts[current].get() < capacity) {
+                return;
+            }
+            int next = (current + 1) % generations.length;
+            clear(next);
+            currentStartedNanos = elapsedNanos;
+            current = next;
+        }
+    }
+
+    private void clear(int generation) {
+        AtomicLongArray words = generations[generation];
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+        counts[generation].set(0);
+    }
+
+    /** Returns true if the ID has (probably) been seen before, and records it as seen. */
+    public boolean checkAndAdd(ByteString id, long nowNanos) {
+        maybeRotate(nowNanos);
+        long fp = fingerprint(id);
+        int block = ((int) (fp >>> 32) & blockMask) * BLOCK_WORDS;
+        int cur = current;
+        if (add(generations[cur], block, fp)) {
+            return true;
+        }
+        counts[cur].incrementAndGet();
+        for (int i = 0; i < generations.length; i++) {
+            if (i != cur && contains(generations[i], block, fp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int bytesUsed() {
+        return generations.length * (blockMask + 1) * BLOCK_WORDS * 8;
+    }
+}
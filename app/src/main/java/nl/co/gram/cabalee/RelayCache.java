@@ -0,0 +1,84 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The transports we've recently sent or relayed, kept for a while so they can be passed on to
+ * peers that connect after they went by.  Bounded by total frame bytes and by age; the oldest
+ * go first.
+ */
+public class RelayCache {
+    private final int maxBytes;
+    private final long maxAgeMillis;
+    private final ArrayDeque<Transport> transports = new ArrayDeque<>();
+    private int bytes = 0;
+
+    public RelayCache(int maxBytes, long maxAgeMillis) {
+        Util.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public synchronized void add(Transport t) {
+        if (t.frame().size() > maxBytes) return;
+        transports.addLast(t);
+        bytes += t.frame().size();
+        while (bytes > maxBytes) {
+            bytes -= transports.pollFirst().frame().size();
+        }
+    }
+
+    private void expire(long nowMillis) {
+        Transport t;
+        while ((t = transports.peekFirst()) != null && t.receivedMillis() < nowMillis - maxAgeMillis) {
+            bytes -= transports.pollFirst().frame().size();
+        }
+    }
+
+    /** Everything cached, oldest first. */
+    public synchronized List<Transport> recent(long nowMillis) {
+        expire(nowMillis);
+        return new ArrayList<>(transports);
+    }
+
+    /**
+     * What to replay to a newly connected comm: our own transports, then relayed ones, each
+     * oldest first, leaving out any that came from that comm.
+     */
+    public synchronized List<Transport> replayFor(String comm, long nowMillis) {
+        expire(nowMillis);
+        List<Transport> out = new ArrayList<>(transports.size());
+        for (Transport t : transports) {
+            if (t.from() == null) out.add(t);
+        }
+        for (Transport t : transports) {
+            if (t.from() != null && !t.from().equals(comm)) out.add(t);
+        }
+        return out;
+    }
+
+    public synchronized int bytes() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        transports.clear();
+        bytes = 0;
+    }
+}
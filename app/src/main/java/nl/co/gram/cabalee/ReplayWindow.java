@@ -0,0 +1,155 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Per-cabal replay protection, bounded by both time and count.
+ *
+ * Transports carry the time they were sent inside the box.  Anything sent longer than
+ * windowMillis ago, or at or before the floor, is rejected without a lookup; only transports
+ * within the window need their IDs remembered.  When the count bound forces an ID out early,
+ * it's the one sent earliest, and the floor is raised to its sent time so it can't be replayed
+ * afterwards.  Sent times are the sender's claim, so the floor is never raised past our own
+ * clock: one peer whose clock runs fast mustn't lock everyone else out.
+ *
+ * Everything lives in arrays allocated up front: the IDs' 64-bit fingerprints in a binary heap
+ * ordered by sent time, since expiry and eviction both take the earliest sent, and in an
+ * open-addressed hash table for the lookups.  Checking a transport allocates nothing.
+ */
+public class ReplayWindow {
+    private final long windowMillis;
+    private final int maxEntries;
+    // The heap: entry i's children are 2i+1 and 2i+2, and none was sent before it.
+    private final long[] sent;
+    private final long[] heap;
+    private int size = 0;
+    // Fingerprints by linear probing, EMPTY where there's none; never more than half full.
+    private static final long EMPTY = 0;
+    private final long[] table;
+    private long floorMillis;
+
+    /** Transports sent before floorMillis (ie: before we joined the cabal) are always rejected. */
+    public ReplayWindow(long windowMillis, int maxEntries, long floorMillis) {
+        Util.checkArgument(windowMillis > 0, "windowMillis must be positive");
+        Util.checkArgument(maxEntries > 0 && maxEntries <= 1 << 28, "maxEntries out of range");
+        this.windowMillis = windowMillis;
+        this.maxEntries = maxEntries;
+        this.sent = new long[maxEntries];
+        this.heap = new long[maxEntries];
+        this.table = new long[Integer.highestOneBit(maxEntries) * 4];
+        this.floorMillis = floorMillis;
+    }
+
+    // EMPTY marks free slots, so the one ID whose fingerprint would be EMPTY shares another's.
+    private static long fingerprint(ByteString id) {
+        long fp = 0;
+        for (int i = 0; i < 8 && i < id.size(); i++) {
+            fp |= (0xFFL & (long) id.byteAt(i)) << (i * 8);
+        }
+        return fp == EMPTY ? 1 : fp;
+    }
+
+    private int slot(long fp) {
+        return (int) (fp ^ (fp >>> 32)) & (table.length - 1);
+    }
+
+    // Adds fp to the table, returning false if it was there already.
+    private boolean tableAdd(long fp) {
+        int mask = table.length - 1;
+        for (int i = slot(fp); ; i = (i + 1) & mask) {
+            if (table[i] == fp) return false;
+            if (table[i] == EMPTY) {
+                table[i] = fp;
+                return true;
+            }
+        }
+    }
+
+    // Removes fp, shifting back whatever probed past it so lookups still find it.
+    private void tableRemove(long fp) {
+        int mask = table.length - 1;
+        int i = slot(fp);
+        while (table[i] != fp) {
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(table[j]);
+            // Move table[j] into the hole unless its home lies cyclically within (i, j].
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = EMPTY;
+    }
+
+    private void swap(int a, int b) {
+        long s = sent[a], h = heap[a];
+        sent[a] = sent[b];
+        heap[a] = heap[b];
+        sent[b] = s;
+        heap[b] = h;
+    }
+
+    private void heapAdd(long fp, long sentMillis) {
+        int i = size++;
+        sent[i] = sentMillis;
+        heap[i] = fp;
+        while (i > 0 && sent[(i - 1) / 2] > sent[i]) {
+            swap(i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    // Forgets the earliest sent, returning its sent time.
+    private long removeEarliest() {
+        long earliest = sent[0];
+        tableRemove(heap[0]);
+        size--;
+        sent[0] = sent[size];
+        heap[0] = heap[size];
+        int i = 0;
+        while (true) {
+            int least = i, l = 2 * i + 1, r = l + 1;
+            if (l < size && sent[l] < sent[least]) least = l;
+            if (r < size && sent[r] < sent[least]) least = r;
+            if (least == i) break;
+            swap(i, least);
+            i = least;
+        }
+        return earliest;
+    }
+
+    /** Returns true if the transport should be rejected as a replay; otherwise records it. */
+    public synchronized boolean checkAndAdd(ByteString transportID, long sentMillis, long nowMillis) {
+        while (size > 0 && sent[0] < nowMillis - windowMillis) {
+            removeEarliest();
+        }
+        if (sentMillis <= floorMillis || sentMillis < nowMillis - windowMillis || sentMillis > nowMillis + windowMillis) {
+            return true;
+        }
+        long fp = fingerprint(transportID);
+        if (!tableAdd(fp)) {
+            return true;
+        }
+        if (size == maxEntries) {
+            floorMillis = Math.max(floorMillis, Math.min(removeEarliest(), nowMillis));
+        }
+        heapAdd(fp, sentMillis);
+        return false;
+    }
+}
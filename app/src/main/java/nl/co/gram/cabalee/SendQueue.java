@@ -0,0 +1,147 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded outgoing queue for a single peer.  Frames come out in priority order (our own messages,
+ * then relayed transports, then keepalives) and the queue never holds more than maxFrames frames
+ * or maxBytes bytes, so a peer that stops reading costs a fixed amount of memory.
+ */
+public class SendQueue {
+    public enum Priority {
+        LOCAL,
+        RELAYED,
+        KEEPALIVE,
+    }
+
+    public enum DropPolicy {
+        /** Make room by dropping queued keepalives, then the oldest relayed transports. */
+        DROP_OLDEST_RELAYED,
+        /** Refuse new frames while full. */
+        DROP_NEWEST,
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+    private final int maxFrames;
+    private final int maxBytes;
+    private final DropPolicy policy;
+    private final List<ArrayDeque<ByteString>> queues;
+    private final long[] dropped = new long[PRIORITIES.length];
+    private int frames = 0;
+    private int bytes = 0;
+
+    public SendQueue(int maxFrames, int maxBytes, DropPolicy policy) {
+        Util.checkArgument(maxFrames > 0, "maxFrames must be positive");
+        Util.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        queues = new ArrayList<>(PRIORITIES.length);
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            queues.add(new ArrayDeque<ByteString>());
+        }
+    }
+
+    private boolean full(int extraBytes) {
+        return frames >= maxFrames || bytes + extraBytes > maxBytes;
+    }
+
+    private void dropOldest(Priority p) {
+        ByteString gone = queues.get(p.ordinal()).poll();
+        frames--;
+        bytes -= gone.size();
+        dropped[p.ordinal()]++;
+    }
+
+    /** Queues frame, returning false if it (rather than something already queued) was dropped. */
+    public synchronized boolean offer(ByteString frame, Priority priority) {
+        ArrayDeque<ByteString> queue = queues.get(priority.ordinal());
+        if (priority == Priority.KEEPALIVE && !queue.isEmpty()) {
+            return true;  // one pending keepalive is as good as several
+        }
+        if (frame.size() > maxBytes) {
+            dropped[priority.ordinal()]++;
+            return false;
+        }
+        if (policy == DropPolicy.DROP_OLDEST_RELAYED) {
+            // Only ever make room at the expense of frames no more important than this one.
+            for (int i = PRIORITIES.length - 1; i >= priority.ordinal() && full(frame.size()); i--) {
+                if (PRIORITIES[i] == Priority.LOCAL) {
+                    break;
+                }
+                while (!queues.get(i).isEmpty() && full(frame.size())) {
+                    dropOldest(PRIORITIES[i]);
+                }
+            }
+        }
+        if (full(frame.size())) {
+            dropped[priority.ordinal()]++;
+            return false;
+        }
+        queue.add(frame);
+        frames++;
+        bytes += frame.size();
+        return true;
+    }
+
+    /** Removes and returns the most important, oldest frame, or null if empty. */
+    public synchronized ByteString poll() {
+        for (ArrayDeque<ByteString> queue : queues) {
+            ByteString frame = queue.poll();
+            if (frame != null) {
+                frames--;
+                bytes -= frame.size();
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return frames == 0;
+    }
+
+    public synchronized int depth() {
+        return frames;
+    }
+
+    public synchronized int bytes() {
+        return bytes;
+    }
+
+    public synchronized long dropped(Priority priority) {
+        return dropped[priority.ordinal()];
+    }
+
+    public synchronized long dropped() {
+        long total = 0;
+        for (long d : dropped) {
+            total += d;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "depth=" + frames + " bytes=" + bytes +
+                " dropped(local=" + dropped[0] + " relayed=" + dropped[1] + " keepalive=" + dropped[2] + ")";
+    }
+}
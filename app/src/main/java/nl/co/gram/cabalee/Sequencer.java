@@ -0,0 +1,53 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Restores arrival order to work finished out of order by several threads.  Callers reserve a
+ * sequence number when work arrives and complete it, possibly with null, when it's done; items
+ * are delivered strictly in reservation order, one at a time, by whichever thread completes the
+ * one that was holding things up.
+ */
+public abstract class Sequencer<T> {
+    private long nextReserved = 0;
+    private long nextDelivered = 0;
+    private final Map<Long, T> completed = new HashMap<>();
+
+    protected abstract void deliver(T item);
+
+    public synchronized long reserve() {
+        return nextReserved++;
+    }
+
+    /** Completes seq; a null item is skipped rather than delivered. */
+    public synchronized void complete(long seq, T item) {
+        Util.checkArgument(seq >= nextDelivered && seq < nextReserved && !completed.containsKey(seq), "bad sequence number");
+        completed.put(seq, item);
+        while (completed.containsKey(nextDelivered)) {
+            T next = completed.remove(nextDelivered++);
+            if (next != null) {
+                deliver(next);
+            }
+        }
+    }
+
+    /** Number of reserved items not yet delivered or skipped. */
+    public synchronized int pending() {
+        return (int) (nextReserved - nextDelivered);
+    }
+}
@@ -1,58 +1,225 @@
 package nl.co.gram.cabalee;
 
+import android.os.SystemClock;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
+/**
+ * Event loop for all socket peers.  A single thread accepts connections on PORT and does the
+ * preamble exchange, framing, reads and writes for every SocketComm, whether it was accepted
+ * here or connected elsewhere and handed over with register().
+ */
 public class ServerPort extends Thread {
     private static final Logger logger = Logger.getLogger("cabalee.serverport");
+    private static final long SELECT_TIMEOUT_MILLIS = 10_000;
+    private static final long IDLE_CHECK_MILLIS = 10_000;
     private final CommCenter commCenter;
-    private ServerSocket serverSocket = null;
+    private final Selector selector;
+    private ServerSocketChannel serverSocket = null;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
     public static final int PORT = 22225;
 
     public ServerPort(CommCenter commCenter) {
-        super();
+        super("ServerPort");
         this.commCenter = commCenter;
         try {
-            serverSocket = new ServerSocket(PORT);
+            selector = Selector.open();
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.socket().bind(new InetSocketAddress(PORT));
+            serverSocket.configureBlocking(false);
+            serverSocket.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             throw new RuntimeException("starting server socket", e);
         }
     }
 
+    /** Runs r on the event loop thread. */
+    void execute(Runnable r) {
+        tasks.add(r);
+        selector.wakeup();
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long atMillis;
+        final Runnable r;
+
+        Timer(long atMillis, Runnable r) {
+            this.atMillis = atMillis;
+            this.r = r;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            return Long.compare(atMillis, o.atMillis);
+        }
+    }
+
+    /** Runs r on the event loop thread after delayMillis. */
+    void executeAfter(Runnable r, long delayMillis) {
+        synchronized (timers) {
+            timers.add(new Timer(SystemClock.elapsedRealtime() + delayMillis, r));
+        }
+        selector.wakeup();
+    }
+
+    // Runs due timers, returning how long select may wait for the next one.
+    private long runTimers() {
+        long now = SystemClock.elapsedRealtime();
+        while (true) {
+            Timer t;
+            synchronized (timers) {
+                t = timers.peek();
+                if (t == null) {
+                    return SELECT_TIMEOUT_MILLIS;
+                } else if (t.atMillis > now) {
+                    return Math.min(SELECT_TIMEOUT_MILLIS, t.atMillis - now);
+                }
+                timers.poll();
+            }
+            runSafely(t.r);
+        }
+    }
+
+    // One task failing mustn't take the loop down, and every socket with it.
+    private static void runSafely(Runnable r) {
+        try {
+            r.run();
+        } catch (Throwable t) {
+            logger.severe("running " + r + ": " + t.getMessage());
+            t.printStackTrace();
+        }
+    }
+
+    /** Hands a connected channel over to the event loop. */
+    public SocketComm register(SocketChannel channel, String name) throws IOException {
+        channel.configureBlocking(false);
+        final SocketComm comm = new SocketComm(commCenter, this, channel, name);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                comm.attach(selector);
+            }
+        });
+        return comm;
+    }
+
     public void run() {
         logger.severe("Starting service on port " + PORT);
-        while (true) {
-            Socket socket;
+        executeAfter(closeIdle, IDLE_CHECK_MILLIS);
+        try {
+            long timeout = SELECT_TIMEOUT_MILLIS;
+            while (true) {
+                selector.select(timeout);
+                if (!selector.isOpen()) {
+                    return;
+                }
+                Runnable r;
+                while ((r = tasks.poll()) != null) {
+                    runSafely(r);
+                }
+                timeout = runTimers();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        ((SocketComm) key.attachment()).onReady(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (ClosedSelectorException e) {
+            logger.info("selector closed, quitting server thread");
+        } catch (IOException e) {
+            logger.severe("select failed, quitting server thread: " + e.getMessage());
+        }
+        close();
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = serverSocket.accept();
+        } catch (IOException e) {
+            logger.severe("failed to accept connection: " + e.getMessage());
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            String name = "serverport:" + channel.socket().toString();
+            logger.severe("accepted network socket from client: " + name);
+            channel.configureBlocking(false);
+            new SocketComm(commCenter, this, channel, name).attach(selector);
+        } catch (Throwable t) {
+            logger.severe("failed to start SocketComm");
             try {
-                logger.info("accepting network connection");
-                socket = serverSocket.accept();
+                channel.close();
             } catch (IOException e) {
-                logger.severe("failed to accept connection, quitting server thread: " + e.getMessage());
-                close();
-                return;
+                e.printStackTrace();
             }
+        }
+    }
+
+    // Replaces the read timeout the blocking sockets used to have, every IDLE_CHECK_MILLIS.
+    private final Runnable closeIdle = new Runnable() {
+        @Override
+        public void run() {
             try {
-                String name = "serverport:" + socket.toString();
-                logger.severe("accepted network socket from client: " + name);
-                socket.setSoTimeout(CommService.KEEP_ALIVE_MILLIS * 2);
-                new SocketComm(commCenter, socket.getInputStream(), socket.getOutputStream(), name);
-            } catch (Throwable t) {
-                logger.severe("failed to start SocketComm");
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                closeIdle();
+            } finally {
+                executeAfter(this, IDLE_CHECK_MILLIS);
+            }
+        }
+    };
+
+    private void closeIdle() {
+        long now = SystemClock.elapsedRealtime();
+        List<SocketComm> idle = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof SocketComm) {
+                SocketComm comm = (SocketComm) key.attachment();
+                if (now - comm.lastReceivedMillis() > CommService.KEEP_ALIVE_MILLIS * 2) {
+                    idle.add(comm);
                 }
             }
         }
+        for (SocketComm comm : idle) {
+            logger.info("closing idle " + comm.name());
+            comm.close();
+        }
     }
 
     public synchronized void close() {
+        logger.info("closing server socket");
+        try {
+            if (selector.isOpen()) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof SocketComm) {
+                        ((SocketComm) key.attachment()).close();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // already closed
+        }
         try {
-            logger.info("closing server socket");
             serverSocket.close();
+            selector.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -14,34 +14,63 @@
 
 package nl.co.gram.cabalee;
 
+import android.os.SystemClock;
+
 import com.google.protobuf.ByteString;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+/**
+ * A non-blocking socket peer, driven by the ServerPort event loop.  On the wire, each side sends
+ * PREAMBLE, then frames of a little-endian uint32 length followed by that many bytes.  PREAMBLE
+ * never changes, since older peers hang up on anything else; the first frame after it is a
+ * HELLO_V1 saying what this end can do (see Capabilities).
+ *
+ * Outgoing frames are coalesced: everything queued is written with a single gather write, and
+ * a small queue waits up to FLUSH_DELAY_MILLIS for company before being flushed.  The queue
+ * itself is bounded, so a peer that stops reading can't make us run out of memory.
+ */
 public class SocketComm implements Comm {
     private static final Logger logger = Logger.getLogger("cabalee.socketcomm");
     private static final ByteString PREAMBLE = ByteString.copyFrom("Cabalee1", StandardCharsets.UTF_8);
-    final AtomicBoolean initiatedSuccessfully = new AtomicBoolean(true);
     final AtomicBoolean closed = new AtomicBoolean(false);
-    final CountDownLatch initiated = new CountDownLatch(2);
     private static final int MAX_MESSAGE_SIZE = 32 * 1024;  // 32K
-    private final InputStream is;
-    private final OutputStream os;
-    private final byte[] inputBuf = new byte[1024];
+    private static final long FLUSH_DELAY_MILLIS = 5;
+    private static final int FLUSH_BYTES = 16 * 1024;
+    private static final int MAX_FLUSH_FRAMES = 256;
+    private static final int MAX_FLUSH_BYTES = 256 * 1024;
+    private static final int MAX_QUEUED_FRAMES = 1024;
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    private final SocketChannel channel;
+    private final ServerPort loop;
     private final String name;
-    private final BlockingDeque<ByteString> toSend = new LinkedBlockingDeque<>();
+    private final SendQueue toSend = new SendQueue(MAX_QUEUED_FRAMES, MAX_QUEUED_BYTES, SendQueue.DropPolicy.DROP_OLDEST_RELAYED);
+    private final AtomicBoolean writeRequested = new AtomicBoolean(true);
     private final CommCenter commCenter;
     private final List<Runnable> onClose = new ArrayList<>();
+    // Everything below is only touched by the event loop thread.
+    private final ByteBuffer readBuf = ByteBuffer.allocate(4 + MAX_MESSAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer lengths = ByteBuffer.allocate(4 * MAX_FLUSH_FRAMES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer[] writing = new ByteBuffer[2 * MAX_FLUSH_FRAMES];
+    private int writingCount = 0;
+    private int writingFrames = 0;
+    private long writingBytes = 0;
+    private long flushes = 0;
+    private long framesFlushed = 0;
+    private long bytesFlushed = 0;
+    private SelectionKey key = null;
+    private volatile boolean initiated = false;
+    private volatile long lastReceivedMillis = SystemClock.elapsedRealtime();
 
     @Override
     public String name() {
@@ -49,182 +78,204 @@ public class SocketComm implements Comm {
     }
 
     @Override
-    public void sendPayload(ByteString payload) {
-        toSend.add(payload);
+    public void sendPayload(ByteString payload, SendQueue.Priority priority) {
+        if (payload.size() > MAX_MESSAGE_SIZE) {
+            logger.severe("message too big (" + payload.size() + "), cowardly refusal to write");
+            return;
+        }
+        if (!toSend.offer(payload, priority)) {
+            logger.warning("send queue for " + name + " is full, dropped " + priority + " frame: " + toSend);
+            return;
+        }
+        int queued = toSend.bytes();
+        if (writeRequested.compareAndSet(false, true)) {
+            Runnable flush = new Runnable() {
+                @Override
+                public void run() {
+                    setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            };
+            if (queued >= FLUSH_BYTES) {
+                loop.execute(flush);
+            } else {
+                loop.executeAfter(flush, FLUSH_DELAY_MILLIS);
+            }
+        }
     }
 
-    public static class CommException extends Exception {
-        CommException(String msg) { super(msg); }
-        CommException(String msg, Throwable t) { super(msg, t); }
+    SocketComm(CommCenter commCenter, ServerPort loop, SocketChannel channel, String name) {
+        this.channel = channel;
+        this.loop = loop;
+        this.name = name;
+        this.commCenter = commCenter;
+        writing[0] = PREAMBLE.asReadOnlyByteBuffer();
+        writingCount = 1;
     }
 
-    // returns null if there are no more messages
-    private ByteString readPayload() throws IOException, CommException {
-        logger.fine("reading message");
-        long length = Util.Uint32.readLittleEndianFrom(is);
-        if (length > MAX_MESSAGE_SIZE || length < 0) {
-            throw new CommException("received invalid length " + length);
-        }
-        logger.fine("Receiving " + length);
-        // TODO: figure out how to read directly into ByteString(.Output)
-        ByteString.Output bso = ByteString.newOutput((int) length);
-        fillBuffer(is, bso, (int) length);
-        logger.fine("read message successfully");
-        ByteString bs = bso.toByteString();
-        return bs;
+    public SocketComm addCloseRunnable(Runnable r) {
+        synchronized (onClose) {
+            onClose.add(r);
+        }
+        return this;
     }
 
-    private void writePayload(ByteString bs) throws IOException, CommException {
-        logger.fine("writing message size " + bs.size());
-        synchronized (os) {
-            if (bs.size() > MAX_MESSAGE_SIZE) {
-                throw new CommException("message too big (" + bs.size() + "), cowardly refusal to write");
-            }
-            Util.Uint32.writeLittleEndianTo(bs.size(), os);
-            bs.writeTo(os);
+    void attach(Selector selector) {
+        try {
+            // We coalesce frames ourselves, so Nagle would only add latency.
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+            logger.info("send init writing preamble");
+        } catch (IOException e) {
+            logger.severe("initiating: " + e.getMessage());
+            close();
         }
-        logger.fine("wrote message successfully");
     }
 
-    public SocketComm(CommCenter commCenter, InputStream is, OutputStream os, String name) {
-        this.is = is;
-        this.os = os;
-        this.name = name;
-        this.commCenter = commCenter;
-        new Thread(sender()).start();
-        new Thread(receiver()).start();
+    private void setInterest(int ops) {
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
     }
 
-    public SocketComm addCloseRunnable(Runnable r) {
-        onClose.add(r);
-        return this;
+    long lastReceivedMillis() {
+        return lastReceivedMillis;
     }
 
-    private void reallyAwait(CountDownLatch cdl) {
-        while (true) {
-            try {
-                cdl.await();
-                return;
-            } catch (InterruptedException e) {
-                logger.warning("countdownlatch reallyAwait interrupted: " + e.getMessage());
+    void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                onReadable();
             }
+            if (key.isValid() && key.isWritable()) {
+                onWritable();
+            }
+        } catch (IOException e) {
+            logger.info("got IOException on " + name + ", closing: " + e.getMessage());
+            close();
+        } catch (Throwable t) {
+            logger.severe("handling " + name + ": " + t.getMessage());
+            t.printStackTrace();
+            close();
         }
     }
 
-    public synchronized void close() {
-        if (closed.getAndSet(true)) {
-            try {
-                this.is.close();
-            } catch (IOException e) {
-                logger.severe("closing input stream: " + e.getMessage());
+    private void onReadable() throws IOException {
+        if (channel.read(readBuf) < 0) {
+            throw new IOException("end of input stream");
+        }
+        lastReceivedMillis = SystemClock.elapsedRealtime();
+        readBuf.flip();
+        if (!initiated) {
+            if (readBuf.remaining() < PREAMBLE.size()) {
+                readBuf.compact();
+                return;
+            }
+            ByteBuffer got = readBuf.slice();
+            got.limit(PREAMBLE.size());
+            if (!ByteString.copyFrom(got).equals(PREAMBLE)) {
+                throw new IOException("received unexpected preamble");
             }
-            try {
-                this.os.close();
-            } catch (IOException e) {
-                logger.severe("closing output stream: " + e.getMessage());
+            readBuf.position(readBuf.position() + PREAMBLE.size());
+            initiated = true;
+            logger.info("recv initiated");
+            commCenter.addComm(this);
+        }
+        while (readBuf.remaining() >= 4) {
+            long length = 0xFFFFFFFFL & readBuf.getInt(readBuf.position());
+            if (length > MAX_MESSAGE_SIZE) {
+                throw new IOException("received invalid length " + length);
             }
-            toSend.add(ByteString.EMPTY);
-            for (Runnable r: onClose) {
-                r.run();
+            if (readBuf.remaining() < 4 + length) {
+                break;
             }
+            readBuf.position(readBuf.position() + 4);
+            ByteString received = ByteString.copyFrom(readBuf, (int) length);
+            commCenter.handlePayloadBytes(name(), received);
         }
+        readBuf.compact();
     }
 
-    public boolean closed() {
-        return this.closed.get();
+    // Gathers as many queued frames as allowed into writing, returning false if there were none.
+    private boolean gather() {
+        lengths.clear();
+        writingCount = 0;
+        writingFrames = 0;
+        writingBytes = 0;
+        while (writingFrames < MAX_FLUSH_FRAMES && writingBytes < MAX_FLUSH_BYTES) {
+            ByteString next = toSend.poll();
+            if (next == null) {
+                break;
+            }
+            lengths.putInt(4 * writingFrames, next.size());
+            ByteBuffer length = lengths.duplicate();
+            length.position(4 * writingFrames).limit(4 * writingFrames + 4);
+            writing[writingCount++] = length;
+            writing[writingCount++] = next.asReadOnlyByteBuffer();
+            writingFrames++;
+            writingBytes += 4 + next.size();
+        }
+        return writingFrames > 0;
     }
 
-    private Runnable sender() {
-        return new Runnable() {
-            @Override
-            public void run() {
-                logger.info("send init writing preamble");
-                try {
-                    synchronized (os) {
-                        PREAMBLE.writeTo(os);
-                    }
-                } catch (Throwable e) {
-                    logger.severe("initiating: " + e.getMessage());
-                    initiatedSuccessfully.set(false);
-                }
-                logger.info("send initiated");
-                initiated.countDown();
-                reallyAwait(initiated);
-                if (initiatedSuccessfully.get()) {
-                    commCenter.addComm(SocketComm.this);
-                    try {
-                        while (!closed()) {
-                            ByteString bs = toSend.takeFirst();
-                            if (bs.size() > 0) {
-                                writePayload(bs);
-                            }
-                        }
-                    } catch (Throwable t) {
-                        logger.info("thrown while writing: " + t.getMessage());
-                    } finally {
-                        commCenter.removeComm(SocketComm.this);
-                    }
+    private void onWritable() throws IOException {
+        while (true) {
+            if (writingCount == 0 && !gather()) {
+                writeRequested.set(false);
+                // Something may have been queued between the poll and clearing the flag.
+                if (toSend.isEmpty() || !writeRequested.compareAndSet(false, true)) {
+                    setInterest(SelectionKey.OP_READ);
+                    return;
                 }
-                close();
+                continue;
+            }
+            channel.write(writing, 0, writingCount);
+            if (writing[writingCount - 1].hasRemaining()) {
+                return;  // wait for the socket to drain
             }
-        };
+            if (writingFrames > 0) {
+                commCenter.wrote(name);
+                flushes++;
+                framesFlushed += writingFrames;
+                bytesFlushed += writingBytes;
+                logger.fine("flushed " + writingFrames + " frames, " + writingBytes + " bytes to " + name);
+            }
+            writingCount = 0;
+        }
     }
 
-    private Runnable receiver() {
-        return new Runnable() {
-            @Override
-            public void run() {
-                logger.info("recv init");
-                try {
-                    ByteString.Output gotPreamble = ByteString.newOutput(8);
-                    synchronized (is) {
-                        fillBuffer(is, gotPreamble, 8);
-                    }
-                    if (!gotPreamble.toByteString().equals(PREAMBLE)) {
-                        throw new CommException("received unexpected preamble");
-                    }
-                } catch (IOException e) {
-                    logger.info("recv ioerror: " + e.getMessage());
-                    initiatedSuccessfully.set(false);
-                } catch (Throwable e) {
-                    logger.severe("receiving: " + e.getMessage());
-                    e.printStackTrace();
-                    initiatedSuccessfully.set(false);
-                }
-                logger.info("recv initiated");
-                initiated.countDown();
-                reallyAwait(initiated);
-                if (!initiatedSuccessfully.get()) {
-                    logger.warning("recv init unsuccessful, bailing");
-                } else {
-                    try {
-                        while (!closed()) {
-                            ByteString received = readPayload();
-                            commCenter.handlePayloadBytes(name(), received);
-                        }
-                    } catch (IOException e) {
-                        logger.info("got IOException from msg read, closing successfully: " + e.getMessage());
-                    } catch (Throwable e) {
-                        logger.severe("reading payload: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
-                close();
-            }
-        };
+    public SendQueue sendQueue() {
+        return toSend;
     }
 
-    private void fillBuffer(InputStream is, ByteString.Output bs, int length) throws IOException {
-        synchronized (inputBuf) {
-            int bytesRead = 0;
-            while (bytesRead < length) {
-                int n = is.read(inputBuf, 0, length-bytesRead);
-                if (n < 0) {
-                    throw new IOException("end of input stream");
-                }
-                bs.write(inputBuf, 0, n);
-                bytesRead += n;
-            }
+    /** Average frames and bytes per flush so far. */
+    public String flushStats() {
+        long n = Math.max(1, flushes);
+        return flushes + " flushes, " + ((double) framesFlushed / n) + " frames/flush, " + (bytesFlushed / n) + " bytes/flush";
+    }
+
+    public void close() {
+        if (closed.getAndSet(true)) {
+            return;
+        }
+        logger.info("closing " + name + ": " + flushStats() + ", queue " + toSend);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.severe("closing channel: " + e.getMessage());
+        }
+        if (initiated) {
+            commCenter.removeComm(this);
         }
+        List<Runnable> runnables;
+        synchronized (onClose) {
+            runnables = new ArrayList<>(onClose);
+        }
+        for (Runnable r : runnables) {
+            r.run();
+        }
+    }
+
+    public boolean closed() {
+        return this.closed.get();
     }
 }
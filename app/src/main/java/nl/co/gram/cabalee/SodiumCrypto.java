@@ -0,0 +1,176 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.goterl.lazysodium.Sodium;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Native libsodium, through lazysodium's JNA bindings.  Those take whole arrays, without offsets
+ * or NaCl's zero padding, so we copy in and out of per-thread arrays; the native code still comes
+ * out well ahead of TweetNaclFast.
+ *
+ * The copies aren't free: JNA copies each whole array across to native memory and back again,
+ * which is noise next to a signature but most of the cost of a secretbox of a large reassembled
+ * message.  So arrays over MAX_RETAINED aren't kept, lest every small message pay for the
+ * largest one.
+ */
+class SodiumCrypto extends CryptoProvider {
+    private static final Logger logger = Logger.getLogger("cabalee.crypto");
+    // SodiumAndroid in the app, SodiumJava when running unit tests on a desktop JVM.
+    private static final String[] BINDINGS = {"com.goterl.lazysodium.SodiumAndroid", "com.goterl.lazysodium.SodiumJava"};
+    private final Sodium sodium;
+
+    private static class Buffers {
+        final byte[] signature = new byte[SIGNATURE_BYTES];
+        byte[] in = new byte[0];
+        byte[] out = new byte[0];
+    }
+
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            allocated(SIGNATURE_BYTES);
+            return new Buffers();
+        }
+    };
+
+    private SodiumCrypto(Sodium sodium) {
+        this.sodium = sodium;
+    }
+
+    /** Returns null if there's no libsodium for this device. */
+    static SodiumCrypto load() {
+        for (String binding : BINDINGS) {
+            try {
+                Sodium sodium = (Sodium) Class.forName(binding).getDeclaredConstructor().newInstance();
+                if (sodium.sodium_init() < 0) {
+                    logger.severe("sodium_init failed with " + binding);
+                    continue;
+                }
+                return new SodiumCrypto(sodium);
+            } catch (ClassNotFoundException e) {
+                // try the next
+            } catch (Throwable t) {
+                // Such as SodiumAndroid's native library missing from a desktop JVM.
+                logger.info("libsodium unavailable through " + binding + ": " + t);
+            }
+        }
+        return null;
+    }
+
+    private Buffers buffers(int size) {
+        Buffers b = buffers.get();
+        if (b.in.length < size) {
+            b.in = new byte[size];
+            b.out = new byte[size];
+            allocated(2L * size);
+        }
+        return b;
+    }
+
+    private static void release(Buffers b) {
+        if (b.in.length > MAX_RETAINED) {
+            b.in = b.out = new byte[0];
+        }
+    }
+
+    @Override
+    public String name() {
+        return "libsodium";
+    }
+
+    @Override
+    public boolean secretbox(byte[] c, byte[] m, int len, byte[] nonce, byte[] key) {
+        if (len < ZERO_BYTES) {
+            return false;
+        }
+        Buffers b = buffers(len - BOX_ZERO_BYTES);
+        try {
+            System.arraycopy(m, ZERO_BYTES, b.in, 0, len - ZERO_BYTES);
+            if (sodium.crypto_secretbox_easy(b.out, b.in, len - ZERO_BYTES, nonce, key) != 0) {
+                return false;
+            }
+            Arrays.fill(c, 0, BOX_ZERO_BYTES, (byte) 0);
+            System.arraycopy(b.out, 0, c, BOX_ZERO_BYTES, len - BOX_ZERO_BYTES);
+            return true;
+        } finally {
+            release(b);
+        }
+    }
+
+    @Override
+    public boolean secretboxOpen(byte[] m, byte[] c, int len, byte[] nonce, byte[] key) {
+        if (len < ZERO_BYTES) {
+            return false;
+        }
+        Buffers b = buffers(len - BOX_ZERO_BYTES);
+        try {
+            System.arraycopy(c, BOX_ZERO_BYTES, b.in, 0, len - BOX_ZERO_BYTES);
+            if (sodium.crypto_secretbox_open_easy(b.out, b.in, len - BOX_ZERO_BYTES, nonce, key) != 0) {
+                return false;
+            }
+            Arrays.fill(m, 0, ZERO_BYTES, (byte) 0);
+            System.arraycopy(b.out, 0, m, ZERO_BYTES, len - ZERO_BYTES);
+            return true;
+        } finally {
+            release(b);
+        }
+    }
+
+    @Override
+    public void signKeyPair(byte[] publicKey, byte[] secretKey, byte[] seed) {
+        if (sodium.crypto_sign_seed_keypair(publicKey, secretKey, seed) != 0) {
+            throw new RuntimeException("crypto_sign_seed_keypair failed");
+        }
+    }
+
+    @Override
+    public void sign(byte[] signed, byte[] m, int off, int len, byte[] secretKey) {
+        Buffers b = buffers(len);
+        try {
+            System.arraycopy(m, off, b.in, 0, len);
+            if (sodium.crypto_sign_detached(b.signature, null, b.in, len, secretKey) != 0) {
+                throw new RuntimeException("crypto_sign_detached failed");
+            }
+            System.arraycopy(b.signature, 0, signed, 0, SIGNATURE_BYTES);
+            System.arraycopy(b.in, 0, signed, SIGNATURE_BYTES, len);
+        } finally {
+            release(b);
+        }
+    }
+
+    @Override
+    public boolean verify(byte[] signed, int off, int len, byte[] publicKey) {
+        if (len < SIGNATURE_BYTES) {
+            return false;
+        }
+        Buffers b = buffers(len - SIGNATURE_BYTES);
+        try {
+            System.arraycopy(signed, off, b.signature, 0, SIGNATURE_BYTES);
+            System.arraycopy(signed, off + SIGNATURE_BYTES, b.in, 0, len - SIGNATURE_BYTES);
+            return sodium.crypto_sign_verify_detached(b.signature, b.in, len - SIGNATURE_BYTES, publicKey) == 0;
+        } finally {
+            release(b);
+        }
+    }
+
+    @Override
+    public void randomBytes(byte[] out) {
+        sodium.randombytes_buf(out, out.length);
+    }
+}
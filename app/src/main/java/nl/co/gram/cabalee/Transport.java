@@ -0,0 +1,152 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A boxed cabal message as it travels between comms, parsed once when it arrives (or is created
+ * locally) and passed unchanged through dedup, routing, relaying and unboxing.  The box is hashed
+ * exactly once, here, and the body and tag are substrings of the frame rather than copies.
+ *
+ * Replay protection, which has to recognise the box however it was framed, uses boxID(), the hash
+ * of the box.  The ID covers the whole frame, being the hash of its type and routing tag followed
+ * by the box ID.  Only the box is authenticated, so a relay could rewrite the tag; if the ID left
+ * the tag out, a mis-tagged copy would take the genuine one's place in every dedup filter it
+ * reached, and the genuine one would be dropped.
+ */
+public final class Transport {
+    private final MsgType type;
+    private final ByteString frame;
+    private final ByteString tag;
+    private final ByteString body;
+    private final ByteString id;
+    private final ByteString boxID;
+    private final String from;
+    private final long receivedMillis;
+
+    private Transport(MsgType type, ByteString frame, ByteString tag, ByteString body, String from) {
+        this.type = type;
+        this.frame = frame;
+        this.tag = tag;
+        this.body = body;
+        this.boxID = Util.transportID(body);
+        this.id = frame == null ? boxID : Util.transportID(frame.substring(0, frame.size() - body.size()), boxID);
+        this.from = from;
+        this.receivedMillis = System.currentTimeMillis();
+    }
+
+    /** Parses a CABAL_MESSAGE_V1, V2 or CABAL_FRAGMENT_V1 frame received from a comm, or returns null if it's malformed. */
+    public static Transport parse(String from, ByteString frame) {
+        if (frame.size() < 1) {
+            return null;
+        }
+        switch (frame.byteAt(0)) {
+            case MsgType.CABAL_MESSAGE_V1_VALUE:
+                return new Transport(MsgType.CABAL_MESSAGE_V1, frame, null, frame.substring(1), from);
+            case MsgType.CABAL_MESSAGE_V2_VALUE:
+            case MsgType.CABAL_FRAGMENT_V1_VALUE:
+                if (frame.size() < 1 + Cabal.ROUTING_TAG_SIZE) {
+                    return null;
+                }
+                return new Transport(MsgType.forNumber(frame.byteAt(0)), frame,
+                        frame.substring(1, 1 + Cabal.ROUTING_TAG_SIZE),
+                        frame.substring(1 + Cabal.ROUTING_TAG_SIZE), from);
+            default:
+                return null;
+        }
+    }
+
+    private static final ByteString V1_PREFIX = ByteString.copyFrom(new byte[]{MsgType.CABAL_MESSAGE_V1_VALUE});
+    private static final ByteString V2_PREFIX = ByteString.copyFrom(new byte[]{MsgType.CABAL_MESSAGE_V2_VALUE});
+
+    /** Wraps a box we created.  Tag may be null, in which case it's sent untagged as a CABAL_MESSAGE_V1. */
+    public static Transport local(ByteString body, ByteString tag) {
+        if (tag == null) {
+            return new Transport(MsgType.CABAL_MESSAGE_V1, V1_PREFIX.concat(body), null, body, null);
+        }
+        Util.checkArgument(tag.size() == Cabal.ROUTING_TAG_SIZE, "bad routing tag size");
+        return new Transport(MsgType.CABAL_MESSAGE_V2, V2_PREFIX.concat(tag).concat(body), tag, body, null);
+    }
+
+    private static final ByteString FRAGMENT_PREFIX = ByteString.copyFrom(new byte[]{MsgType.CABAL_FRAGMENT_V1_VALUE});
+
+    /** Wraps a fragment we sealed (see Fragments) of one of our own boxes. */
+    public static Transport fragment(ByteString body, ByteString tag) {
+        Util.checkArgument(tag.size() == Cabal.ROUTING_TAG_SIZE, "bad routing tag size");
+        return new Transport(MsgType.CABAL_FRAGMENT_V1, FRAGMENT_PREFIX.concat(tag).concat(body), tag, body, null);
+    }
+
+    /**
+     * Wraps a box reassembled from the fragments the comm from sent us.  It was never sent as a
+     * whole, so it has no frame and isn't to be relayed; its fragments already were.
+     */
+    public static Transport reassembled(ByteString body, String from) {
+        return new Transport(MsgType.CABAL_FRAGMENT_V1, null, null, body, from);
+    }
+
+    public MsgType type() {
+        return type;
+    }
+
+    /** The bytes to send to a comm, exactly as received, or null if it was reassembled. */
+    public ByteString frame() {
+        return frame;
+    }
+
+    /**
+     * The frame for a peer that doesn't understand routing tags: the same box as a
+     * CABAL_MESSAGE_V1, with the same box ID.  Null for fragments, which such a peer can't use.
+     */
+    public ByteString untaggedFrame() {
+        switch (type) {
+            case CABAL_MESSAGE_V1:
+                return frame;
+            case CABAL_MESSAGE_V2:
+                return V1_PREFIX.concat(body);
+            default:
+                return null;
+        }
+    }
+
+    /** Routing tag, or null for untagged transports. */
+    public ByteString tag() {
+        return tag;
+    }
+
+    /** The box itself, without type or tag. */
+    public ByteString body() {
+        return body;
+    }
+
+    /** Identifies this frame, for dedup and relaying. */
+    public ByteString id() {
+        return id;
+    }
+
+    /** Identifies the box, whichever frame it came in. */
+    public ByteString boxID() {
+        return boxID;
+    }
+
+    /** Name of the comm it came from, or null if we created it. */
+    public String from() {
+        return from;
+    }
+
+    public long receivedMillis() {
+        return receivedMillis;
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright 2020 The Cabalī Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package nl.co.gram.cabalee;
+
+import com.iwebpp.crypto.TweetNaclFast;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Pure Java crypto, available everywhere.
+ *
+ * Every member of a cabal has to agree on which signatures are valid, whichever provider it
+ * has, so verify() first refuses what libsodium's crypto_sign_verify_detached does and
+ * TweetNaCl doesn't: S of L or more, and public keys or R that aren't canonical or have
+ * small order.
+ */
+class TweetNaclCrypto extends CryptoProvider {
+    private final SecureRandom secureRandom = new SecureRandom();
+    // crypto_sign_open needs somewhere to put the message, though we don't want it.
+    private final ThreadLocal<byte[]> opened = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[0];
+        }
+    };
+
+    // The group order, little-endian.
+    private static final byte[] L = {
+            (byte) 0xed, (byte) 0xd3, (byte) 0xf5, 0x5c, 0x1a, 0x63, 0x12, 0x58,
+            (byte) 0xd6, (byte) 0x9c, (byte) 0xf7, (byte) 0xa2, (byte) 0xde, (byte) 0xf9, (byte) 0xde, 0x14,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x10};
+    // Encodings of the points of small order, ignoring the sign bit, as libsodium lists them.
+    private static final byte[][] SMALL_ORDER = {
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0x26, (byte) 0xe8, (byte) 0x95, (byte) 0x8f, (byte) 0xc2, (byte) 0xb2, 0x27, (byte) 0xb0,
+                    0x45, (byte) 0xc3, (byte) 0xf4, (byte) 0x89, (byte) 0xf2, (byte) 0xef, (byte) 0x98, (byte) 0xf0,
+                    (byte) 0xd5, (byte) 0xdf, (byte) 0xac, 0x05, (byte) 0xd3, (byte) 0xc6, 0x33, 0x39,
+                    (byte) 0xb1, 0x38, 0x02, (byte) 0x88, 0x6d, 0x53, (byte) 0xfc, 0x05},
+            {(byte) 0xc7, 0x17, 0x6a, 0x70, 0x3d, 0x4d, (byte) 0xd8, 0x4f,
+                    (byte) 0xba, 0x3c, 0x0b, 0x76, 0x0d, 0x10, 0x67, 0x0f,
+                    0x2a, 0x20, 0x53, (byte) 0xfa, 0x2c, 0x39, (byte) 0xcc, (byte) 0xc6,
+                    0x4e, (byte) 0xc7, (byte) 0xfd, 0x77, (byte) 0x92, (byte) 0xac, 0x03, 0x7a},
+            fieldElement(0xec),  // p - 1
+            fieldElement(0xed),  // p
+            fieldElement(0xee),  // p + 1
+    };
+
+    // p + first - 0xed, for first of 0xec..0xee.
+    private static byte[] fieldElement(int first) {
+        byte[] out = new byte[32];
+        Arrays.fill(out, (byte) 0xff);
+        out[0] = (byte) first;
+        out[31] = 0x7f;
+        return out;
+    }
+
+    @Override
+    public String name() {
+        return "TweetNaclFast";
+    }
+
+    @Override
+    public boolean secretbox(byte[] c, byte[] m, int len, byte[] nonce, byte[] key) {
+        return TweetNaclFast.crypto_secretbox(c, m, len, nonce, key) == 0;
+    }
+
+    @Override
+    public boolean secretboxOpen(byte[] m, byte[] c, int len, byte[] nonce, byte[] key) {
+        return TweetNaclFast.crypto_secretbox_open(m, c, len, nonce, key) == 0;
+    }
+
+    @Override
+    public void signKeyPair(byte[] publicKey, byte[] secretKey, byte[] seed) {
+        TweetNaclFast.Signature.KeyPair kp = TweetNaclFast.Signature.keyPair_fromSeed(seed);
+        System.arraycopy(kp.getPublicKey(), 0, publicKey, 0, PUBLIC_KEY_BYTES);
+        System.arraycopy(kp.getSecretKey(), 0, secretKey, 0, SECRET_KEY_BYTES);
+    }
+
+    @Override
+    public void sign(byte[] signed, byte[] m, int off, int len, byte[] secretKey) {
+        TweetNaclFast.crypto_sign(signed, -1, m, off, len, secretKey);
+    }
+
+    @Override
+    public boolean verify(byte[] signed, int off, int len, byte[] publicKey) {
+        if (len < SIGNATURE_BYTES) {
+            return false;
+        }
+        // The signature is R followed by S.
+        if (!canonicalScalar(signed, off + 32) || smallOrder(signed, off)
+                || !canonicalPoint(publicKey) || smallOrder(publicKey, 0)) {
+            return false;
+        }
+        byte[] m = opened.get();
+        if (m.length < len) {
+            m = new byte[len];
+            allocated(len);
+        }
+        boolean ok = TweetNaclFast.crypto_sign_open(m, -1, signed, off, len, publicKey) == 0;
+        opened.set(m.length > MAX_RETAINED ? new byte[0] : m);
+        return ok;
+    }
+
+    @Override
+    public void randomBytes(byte[] out) {
+        secureRandom.nextBytes(out);
+    }
+
+    // Whether s[off:off+32] is less than L.
+    static boolean canonicalScalar(byte[] s, int off) {
+        for (int i = 31; i >= 0; i--) {
+            int a = s[off + i] & 0xff, b = L[i] & 0xff;
+            if (a != b) return a < b;
+        }
+        return false;
+    }
+
+    // Whether the y coordinate of the point p encodes is less than the field prime, 2^255 - 19.
+    static boolean canonicalPoint(byte[] p) {
+        if ((p[31] & 0x7f) != 0x7f) return true;
+        for (int i = 30; i > 0; i--) {
+            if (p[i] != (byte) 0xff) return true;
+        }
+        return (p[0] & 0xff) < 0xed;
+    }
+
+    static boolean smallOrder(byte[] p, int off) {
+        for (byte[] bad : SMALL_ORDER) {
+            int i = 0;
+            while (i < 31 && p[off + i] == bad[i]) i++;
+            if (i == 31 && (p[off + 31] & 0x7f) == bad[31]) return true;
+        }
+        return false;
+    }
+}
@@ -26,7 +26,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.logging.Logger;
 
 public class Util {
@@ -70,9 +69,8 @@ public class Util {
         return out;
     }
 
-    private static final SecureRandom secureRandom = new SecureRandom();
-    public static synchronized void randomBytes(byte[] bytes) {
-        secureRandom.nextBytes(bytes);
+    public static void randomBytes(byte[] bytes) {
+        CryptoProvider.get().randomBytes(bytes);
     }
 
     public static String toTitle(byte[] b) {
@@ -133,6 +131,10 @@ public class Util {
                 .build();
     }
 
+    public static long toMillis(Timestamp t) {
+        return t.getSeconds() * 1000L + t.getNanos() / 1_000_000;
+    }
+
     public static long newRandomID() {
         byte[] b = new byte[8];
         Util.randomBytes(b);
@@ -213,14 +215,26 @@ public class Util {
     }
 
 
-    public static ByteString transportID(ByteString bs) {
-        MessageDigest d;
-        try {
-            d = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("no sha256");
+    private static final ThreadLocal<MessageDigest> transportDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return sha256();
         }
+    };
+
+    public static ByteString transportID(ByteString bs) {
+        MessageDigest d = transportDigest.get();
+        d.reset();
         d.update(bs.asReadOnlyByteBuffer());
         return ByteString.copyFrom(d.digest());
     }
+
+    /** The transport ID of a frame's header followed by the ID of its box. */
+    public static ByteString transportID(ByteString header, ByteString boxID) {
+        MessageDigest d = transportDigest.get();
+        d.reset();
+        d.update(header.asReadOnlyByteBuffer());
+        d.update(boxID.asReadOnlyByteBuffer());
+        return ByteString.copyFrom(d.digest());
+    }
 }
@@ -42,7 +42,8 @@ import android.os.Handler;
 import androidx.annotation.RequiresApi;
 
 import java.net.Inet6Address;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -250,9 +251,10 @@ public class WifiAwareCommCenter extends AttachCallback {
                 logger.info("Attempting to create wifiAware socket as client");
                 int peerPort = peerAwareInfo.getPort();
                 try {
-                    Socket socket = network.getSocketFactory().createSocket(peerIpv6, peerPort);
-                    socket.setSoTimeout(CommService.KEEP_ALIVE_MILLIS * 2);
-                    SocketComm sc = new SocketComm(commCenter, socket.getInputStream(), socket.getOutputStream(), "wifiaware:" + peerIpv6.getHostAddress());
+                    SocketChannel channel = SocketChannel.open();
+                    network.bindSocket(channel.socket());
+                    channel.connect(new InetSocketAddress(peerIpv6, peerPort));
+                    SocketComm sc = serverPort.register(channel, "wifiaware:" + peerIpv6.getHostAddress());
                     synchronized (WifiAwareCommCenter.this) {
                         commsByAddr.put(peerIpv6, sc);
                     }
@@ -31,8 +31,9 @@ import android.os.SystemClock;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -50,7 +51,7 @@ public class WifiP2pCommCenter {
     private final CommCenter commCenter;
     private BroadcastReceiver broadcastReceiver = null;
     private Handler handler = null;
-    private Socket clientSocket = null;
+    private SocketChannel clientSocket = null;
     private WifiP2pManager wifiP2pManager = null;
     private ServerSocket serverSocket = null;
 
@@ -235,15 +236,14 @@ public class WifiP2pCommCenter {
             public void run() {
                 logger.severe("connecting socket to " + groupOwnerAddress);
                 try {
-                    clientSocket = new Socket(groupOwnerAddress, PORT);
+                    clientSocket = SocketChannel.open(new InetSocketAddress(groupOwnerAddress, PORT));
                 } catch (IOException e) {
                     logger.severe("Failed to connect to " + groupOwnerAddress + ": " + e.getMessage());
                     return;
                 }
                 try {
                     logger.severe("Successfully created socket, wrapping in SocketComm");
-                    clientSocket.setSoTimeout(CommService.KEEP_ALIVE_MILLIS * 2);
-                    socketComm = new SocketComm(commCenter, clientSocket.getInputStream(), clientSocket.getOutputStream(), "wifip2pClient:" + groupOwnerAddress);
+                    socketComm = serverPort.register(clientSocket, "wifip2pClient:" + groupOwnerAddress);
                     socketComm.addCloseRunnable(new Runnable() {
                         @Override
                         public void run() {
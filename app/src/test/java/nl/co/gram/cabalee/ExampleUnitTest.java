@@ -19,6 +19,15 @@ import com.iwebpp.crypto.TweetNaclFast;
 
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
 /**
@@ -51,7 +60,7 @@ public class ExampleUnitTest {
                     .build();
             Identity ident = new Identity();
             ByteString boxed = Cabal.boxIt(p, box, ident);
-            Payload p2 = Cabal.unboxIt(boxed, box);
+            Payload p2 = Cabal.unboxIt(boxed, box).payload;
             assertTrue(p.equals(p2));
             assertNull(Cabal.unboxIt(boxed.substring(1), box));
             assertNull(Cabal.unboxIt(boxed.substring(0, boxed.size() - 1), box));
@@ -61,4 +70,713 @@ public class ExampleUnitTest {
             }
         }
     }
+
+    @Test
+    public void testBoxCodecMatchesBoxIt() {
+        byte[] key = new byte[TweetNaclFast.SecretBox.keyLength];
+        Util.randomBytes(key);
+        TweetNaclFast.SecretBox box = new TweetNaclFast.SecretBox(key);
+        for (int i = 0; i < 100; i++) {
+            Payload p = Payload.newBuilder()
+                    .setCleartextBroadcast(MessageContents.newBuilder()
+                            .setText("wheee " + i))
+                    .build();
+            Identity ident = i % 2 == 0 ? new Identity() : new Identity(new byte[Identity.PublicKey.SIZE]);
+            ByteString boxed = BoxCodec.boxIt(p, key, ident);
+            assertEquals(p, Cabal.unboxIt(boxed, box).payload);
+            Message m = BoxCodec.unboxIt(Cabal.boxIt(p, box, ident), key);
+            assertEquals(p, m.payload);
+            assertEquals(ident.publicKey().identity(), m.from.identity());
+            assertNull(BoxCodec.unboxIt(boxed.substring(1), key));
+            assertNull(BoxCodec.unboxIt(boxed.substring(0, boxed.size() - 1), key));
+        }
+    }
+
+    @Test
+    public void replayWindow() {
+        long now = 1_000_000;
+        ReplayWindow w = new ReplayWindow(1000, 2, now - 500);
+        ByteString a = ByteString.copyFrom(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        ByteString b = ByteString.copyFrom(new byte[]{2, 2, 3, 4, 5, 6, 7, 8});
+        ByteString c = ByteString.copyFrom(new byte[]{3, 2, 3, 4, 5, 6, 7, 8});
+        assertTrue(w.checkAndAdd(a, now - 600, now));  // before floor
+        assertFalse(w.checkAndAdd(a, now - 100, now));
+        assertTrue(w.checkAndAdd(a, now - 100, now));  // replay
+        assertFalse(w.checkAndAdd(b, now - 50, now));
+        assertFalse(w.checkAndAdd(c, now, now));  // evicts a, raising the floor past it
+        assertTrue(w.checkAndAdd(a, now - 100, now));
+        assertTrue(w.checkAndAdd(b, now - 50, now + 5000));  // too old
+
+        // A fast clock neither gets evicted first nor lifts the floor past ours.
+        w = new ReplayWindow(1000, 2, now - 1000);
+        assertFalse(w.checkAndAdd(a, now + 900, now));
+        assertFalse(w.checkAndAdd(b, now - 10, now));
+        assertFalse(w.checkAndAdd(c, now - 5, now));  // evicts b
+        assertTrue(w.checkAndAdd(a, now + 900, now));
+        assertFalse(w.checkAndAdd(ByteString.copyFrom(new byte[]{4, 2, 3, 4, 5, 6, 7, 8}), now + 1, now + 2));
+        w = new ReplayWindow(1000, 1, now - 1000);
+        assertFalse(w.checkAndAdd(a, now + 900, now));
+        assertFalse(w.checkAndAdd(b, now + 950, now));  // evicts a, but the floor stops at now
+        assertFalse(w.checkAndAdd(c, now + 1, now + 1));
+
+        // Colliding fingerprints churn through the table; every one still in the window is caught.
+        w = new ReplayWindow(1000, 64, 0);
+        Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            byte[] id = new byte[8];
+            id[7] = (byte) random.nextInt(256);
+            long sent = now + i - random.nextInt(500);
+            boolean replay = w.checkAndAdd(ByteString.copyFrom(id), sent, now + i);
+            assertTrue(w.checkAndAdd(ByteString.copyFrom(id), sent, now + i) || replay);
+        }
+    }
+
+    private static ByteString randomID(Random random) {
+        byte[] id = new byte[32];
+        random.nextBytes(id);
+        return ByteString.copyFrom(id);
+    }
+
+    @Test
+    public void recentIDFilterHitsAndMisses() {
+        Random random = new Random(1);
+        RecentIDFilter f = new RecentIDFilter(1_000_000_000L, 4, 10_000, 0.01, 1 << 22, 0);
+        List<ByteString> added = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            ByteString id = randomID(random);
+            added.add(id);
+            f.checkAndAdd(id, 0);
+        }
+        for (ByteString id : added) {
+            assertTrue(f.checkAndAdd(id, 0));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 5_000; i++) {
+            if (f.checkAndAdd(randomID(random), 0)) falsePositives++;
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives <= 2 * 0.01 * 5_000);
+    }
+
+    @Test
+    public void recentIDFilterExpires() {
+        Random random = new Random(2);
+        RecentIDFilter f = new RecentIDFilter(1_000, 3, 100, 0.01, 1 << 20, 0);
+        ByteString a = randomID(random);
+        ByteString b = randomID(random);
+        assertFalse(f.checkAndAdd(a, 0));
+        assertFalse(f.checkAndAdd(b, 0));
+        assertFalse(f.checkAndAdd(randomID(random), 1_000));  // rotates
+        assertTrue(f.checkAndAdd(a, 2_000));  // rotates, but a's generation is still kept
+        assertFalse(f.checkAndAdd(b, 3_000));  // rotates a third time, clearing it
+
+        // Flooding rotates early, well before the timer would.
+        ByteString c = randomID(random);
+        assertFalse(f.checkAndAdd(c, 4_000));
+        assertTrue(f.checkAndAdd(c, 4_000));
+        for (int i = 0; i < 10_000; i++) {
+            f.checkAndAdd(randomID(random), 4_000);
+        }
+        assertFalse(f.checkAndAdd(c, 4_000));
+        assertEquals(new RecentIDFilter(1_000, 3, 100, 0.01, 1 << 20, 0).bytesUsed(), f.bytesUsed());
+    }
+
+    @Test
+    public void sendQueuePriorities() {
+        SendQueue q = new SendQueue(3, 1000, SendQueue.DropPolicy.DROP_OLDEST_RELAYED);
+        ByteString local = ByteString.copyFrom(new byte[]{1});
+        ByteString relayed1 = ByteString.copyFrom(new byte[]{2});
+        ByteString relayed2 = ByteString.copyFrom(new byte[]{3});
+        assertTrue(q.offer(CommCenter.KEEP_ALIVE_MESSAGE, SendQueue.Priority.KEEPALIVE));
+        assertTrue(q.offer(relayed1, SendQueue.Priority.RELAYED));
+        assertTrue(q.offer(relayed2, SendQueue.Priority.RELAYED));
+        assertTrue(q.offer(local, SendQueue.Priority.LOCAL));  // drops the keepalive
+        assertTrue(q.offer(local, SendQueue.Priority.LOCAL));  // drops relayed1
+        assertTrue(q.offer(local, SendQueue.Priority.LOCAL));  // drops relayed2
+        assertFalse(q.offer(relayed1, SendQueue.Priority.RELAYED));
+        assertEquals(3, q.depth());
+        assertEquals(3, q.dropped(SendQueue.Priority.RELAYED));  // two evicted, one refused
+        assertEquals(1, q.dropped(SendQueue.Priority.KEEPALIVE));
+        assertEquals(local, q.poll());
+        assertTrue(q.offer(relayed2, SendQueue.Priority.RELAYED));
+        assertEquals(local, q.poll());
+        assertEquals(local, q.poll());
+        assertEquals(relayed2, q.poll());
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void transportParsedOnce() {
+        ByteString body = ByteString.copyFrom(new byte[]{9, 8, 7, 6, 5});
+        ByteString tag = ByteString.copyFrom(new byte[Cabal.ROUTING_TAG_SIZE]);
+        Transport local = Transport.local(body, tag);
+        Transport received = Transport.parse("peer", local.frame());
+        assertEquals(MsgType.CABAL_MESSAGE_V2, received.type());
+        assertEquals(tag, received.tag());
+        assertEquals(body, received.body());
+        assertEquals(local.id(), received.id());
+        assertEquals("peer", received.from());
+        // The same box sent untagged is a different transport, but the same box.
+        Transport untagged = Transport.parse("peer", Transport.local(body, null).frame());
+        assertNotEquals(local.id(), untagged.id());
+        assertEquals(local.boxID(), untagged.boxID());
+        // ...as is one with its tag rewritten.
+        ByteString otherTag = ByteString.copyFrom(new byte[]{1}).concat(tag.substring(1));
+        assertNotEquals(local.id(), Transport.local(body, otherTag).id());
+        assertEquals(Util.transportID(body), local.boxID());
+        assertEquals(local.boxID(), Transport.reassembled(body, "peer").id());
+        assertNull(Transport.parse("peer", local.frame().substring(0, 4)));
+    }
+
+    @Test
+    public void sequencerDeliversInOrder() {
+        final List<Integer> delivered = new ArrayList<>();
+        Sequencer<Integer> s = new Sequencer<Integer>() {
+            @Override
+            protected void deliver(Integer item) {
+                delivered.add(item);
+            }
+        };
+        long a = s.reserve(), b = s.reserve(), c = s.reserve();
+        s.complete(c, 3);
+        s.complete(b, null);
+        assertTrue(delivered.isEmpty());
+        s.complete(a, 1);
+        assertEquals(Arrays.asList(1, 3), delivered);
+        assertEquals(0, s.pending());
+    }
+
+    @Test
+    public void openCompletesEverySeqWhenOpenThrows() {
+        final List<Message> delivered = new ArrayList<>();
+        final Message mine = new Message(Payload.getDefaultInstance(), new Identity().publicKey());
+        final List<Sequencer<Message>> orders = new ArrayList<>();
+        List<CommCenter.Opener> rhs = new ArrayList<>();
+        long[] seqs = new long[3];
+        for (int i = 0; i < seqs.length; i++) {
+            final int n = i;
+            final Sequencer<Message> order = new Sequencer<Message>() {
+                @Override
+                protected void deliver(Message item) {
+                    delivered.add(item);
+                }
+            };
+            orders.add(order);
+            seqs[i] = order.reserve();
+            rhs.add(new CommCenter.Opener() {
+                @Override
+                public Message open(Transport t) {
+                    if (n == 0) throw new IllegalStateException("corrupt key");
+                    return n == 1 ? mine : null;
+                }
+
+                @Override
+                public void completeTransport(long seq, Transport t, Message m) {
+                    order.complete(seq, m);
+                }
+            });
+        }
+        CommCenter.open(Transport.local(ByteString.copyFromUtf8("box"), null), rhs, seqs);
+        assertEquals(Collections.singletonList(mine), delivered);
+        for (Sequencer<Message> order : orders) {
+            assertEquals(0, order.pending());
+        }
+    }
+
+    @Test
+    public void publicKeyCache() {
+        PublicKeyCache cache = new PublicKeyCache(2);
+        byte[] a = new byte[1 + Identity.PublicKey.SIZE];
+        byte[] b = a.clone();
+        b[1] = 1;
+        byte[] signedA = a.clone();
+        signedA[0] = Identity.SIGNED;
+        Identity.PublicKey first = cache.get(a, 0);
+        assertSame(first, cache.get(a, 0));
+        assertEquals(Identity.SIGNED, cache.get(signedA, 0).signingType());
+        cache.get(b, 0);  // evicts a
+        assertNotSame(first, cache.get(a, 0));
+        assertEquals(2, cache.size());
+        assertEquals(0.2, cache.hitRate(), 1e-9);
+    }
+
+    @Test
+    public void unboxChecksEachSignature() {
+        byte[] key = new byte[TweetNaclFast.SecretBox.keyLength];
+        Util.randomBytes(key);
+        Identity[] idents = {new Identity(), new Identity(), new Identity(new byte[Identity.PublicKey.SIZE])};
+        List<ByteString> boxes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Payload p = Payload.newBuilder().setCleartextBroadcast(MessageContents.newBuilder().setText("hi " + i)).build();
+            boxes.add(BoxCodec.boxIt(p, key, idents[i % idents.length]));
+        }
+        for (int i = 0; i < boxes.size(); i++) {
+            Message opened = BoxCodec.unboxIt(boxes.get(i), key);
+            assertEquals("hi " + i, opened.payload.getCleartextBroadcast().getText());
+            assertEquals(idents[i % idents.length].publicKey().identity(), opened.from.identity());
+            // Reopening a kept box, signed or not, skips verification but yields the same message.
+            Message reopened = BoxCodec.reopen(boxes.get(i), key);
+            assertEquals(opened.payload, reopened.payload);
+            assertEquals(opened.from.identity(), reopened.from.identity());
+        }
+
+        // A box signed by idents[1] claiming to be from idents[0] is dropped.
+        byte[] m = new byte[128];
+        m[0] = 127;
+        byte[] signed = idents[1].sign(m);
+        byte[] plain = new byte[1 + Identity.PublicKey.SIZE + signed.length];
+        plain[0] = Identity.SIGNED;
+        idents[0].publicKey().identity().copyTo(plain, 1);
+        System.arraycopy(signed, 0, plain, 1 + Identity.PublicKey.SIZE, signed.length);
+        byte[] nonce = new byte[TweetNaclFast.SecretBox.nonceLength];
+        boxes.set(3, ByteString.copyFrom(nonce).concat(ByteString.copyFrom(new TweetNaclFast.SecretBox(key).box(plain, nonce))));
+        assertNull(BoxCodec.unboxIt(boxes.get(3), key));
+    }
+
+    // RFC 8032 section 7.1, tests 1 and 2.
+    private static final String[][] ED25519_VECTORS = {
+            {"9d61b19deffd5a60ba844af492ec2cc44449c5697b326919703bac031cae7f60",
+                    "d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a",
+                    "",
+                    "e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e065224901555fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b"},
+            {"4ccd089b28ff96da9db6c346ec114e0f5b8a319f35aba624da8cf6ed4fb8a6fb",
+                    "3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c",
+                    "72",
+                    "92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00"},
+    };
+
+    @Test
+    public void cryptoProvidersAgree() {
+        byte[] key = new byte[CryptoProvider.KEY_BYTES];
+        byte[] nonce = new byte[CryptoProvider.NONCE_BYTES];
+        for (int i = 0; i < key.length; i++) key[i] = (byte) i;
+        for (int i = 0; i < nonce.length; i++) nonce[i] = (byte) (100 + i);
+        byte[] text = "Cabalee test vector".getBytes();
+        byte[] m = new byte[CryptoProvider.ZERO_BYTES + text.length];
+        System.arraycopy(text, 0, m, CryptoProvider.ZERO_BYTES, text.length);
+        String boxed = "b2b835e3516b21e347f91f3e082464da41d8fba856d3abc9c49850e017f2c67b4ac54a";
+
+        for (CryptoProvider crypto : CryptoProvider.available()) {
+            byte[] c = new byte[m.length];
+            assertTrue(crypto.secretbox(c, m, m.length, nonce, key));
+            assertEquals(crypto.name(), boxed, Util.toHex(Arrays.copyOfRange(c, CryptoProvider.BOX_ZERO_BYTES, c.length)));
+            byte[] opened = new byte[c.length];
+            assertTrue(crypto.secretboxOpen(opened, c, c.length, nonce, key));
+            assertArrayEquals(m, opened);
+            c[c.length - 1] ^= 1;
+            assertFalse(crypto.secretboxOpen(opened, c, c.length, nonce, key));
+
+            for (String[] v : ED25519_VECTORS) {
+                byte[] pk = new byte[CryptoProvider.PUBLIC_KEY_BYTES];
+                byte[] sk = new byte[CryptoProvider.SECRET_KEY_BYTES];
+                crypto.signKeyPair(pk, sk, Util.fromHex(v[0]));
+                assertEquals(crypto.name(), v[1], Util.toHex(pk));
+                byte[] msg = Util.fromHex(v[2]);
+                byte[] signed = new byte[msg.length + CryptoProvider.SIGNATURE_BYTES + 3];
+                crypto.sign(signed, msg, 0, msg.length, sk);
+                assertEquals(crypto.name(), v[3] + v[2], Util.toHex(Arrays.copyOf(signed, msg.length + CryptoProvider.SIGNATURE_BYTES)));
+                System.arraycopy(signed, 0, signed, 3, msg.length + CryptoProvider.SIGNATURE_BYTES);
+                assertTrue(crypto.verify(signed, 3, msg.length + CryptoProvider.SIGNATURE_BYTES, pk));
+                signed[3] ^= 1;
+                assertFalse(crypto.verify(signed, 3, msg.length + CryptoProvider.SIGNATURE_BYTES, pk));
+            }
+        }
+    }
+
+    @Test
+    public void cryptoProvidersRejectWhatLibsodiumRejects() {
+        // S + L passes TweetNaCl's own check, but not libsodium's.
+        Identity ident = new Identity();
+        byte[] signed = ident.sign(new byte[]{42});
+        byte[] l = Util.fromHex("edd3f55c1a631258d69cf7a2def9de1400000000000000000000000000000010");
+        for (int i = 0, carry = 0; i < 32; i++) {
+            int sum = (signed[32 + i] & 0xff) + (l[i] & 0xff) + carry;
+            signed[32 + i] = (byte) sum;
+            carry = sum >> 8;
+        }
+        byte[] pk = ident.publicKey().identity().toByteArray();
+
+        // So does R = A = the identity with S = 0, on any message.
+        byte[] identity = new byte[CryptoProvider.PUBLIC_KEY_BYTES];
+        identity[0] = 1;
+        byte[] forged = new byte[CryptoProvider.SIGNATURE_BYTES + 1];
+        forged[0] = 1;
+        forged[CryptoProvider.SIGNATURE_BYTES] = 42;
+
+        for (CryptoProvider crypto : CryptoProvider.available()) {
+            assertFalse(crypto.name(), crypto.verify(signed, 0, signed.length, pk));
+            assertFalse(crypto.name(), crypto.verify(forged, 0, forged.length, identity));
+        }
+    }
+
+    @Test
+    public void messageLogRetention() throws Exception {
+        File dir = Files.createTempDirectory("messagelog").toFile();
+        // Three 100-byte records to a segment, at most two segments, nothing older than 1000ms.
+        MessageLog log = new MessageLog(dir, 3 * (12 + 100), 2 * 3 * (12 + 100), 1000);
+        for (int i = 0; i < 6; i++) {
+            byte[] b = new byte[100];
+            b[0] = (byte) i;
+            assertEquals(i, log.append(ByteString.copyFrom(b), i));
+        }
+        assertEquals(0, dir.list().length);  // segments are unlinked once mapped
+        MessageLog.Snapshot before = log.snapshot();
+        assertEquals(0, before.firstSeq);
+        assertEquals(6, before.size());
+
+        // A record bigger than a segment doesn't get one of its own.
+        try {
+            log.append(ByteString.copyFrom(new byte[400]), 6);
+            fail("oversized record kept");
+        } catch (IOException expected) {
+        }
+        assertEquals(6, log.endSeq());
+
+        // A seventh record needs a third segment, so the first goes.
+        log.append(ByteString.copyFrom(new byte[100]), 6);
+        assertEquals(3, log.firstSeq());
+        assertEquals(7, log.endSeq());
+        assertEquals(4, log.snapshot().read(4).boxed.byteAt(0));
+        // ...but is still readable through the snapshot taken before.
+        assertEquals(1, before.read(1).boxed.byteAt(0));
+        assertEquals(1, before.read(1).receivedMillis);
+
+        // Once everything in a segment is too old, it goes too, though the newest is always kept.
+        log.append(ByteString.copyFrom(new byte[100]), 1007);
+        assertEquals(6, log.firstSeq());
+        log.append(ByteString.copyFrom(new byte[100]), 5000);
+        assertEquals(6, log.firstSeq());
+        log.append(ByteString.copyFrom(new byte[100]), 6001);
+        assertEquals(9, log.firstSeq());
+        log.clear();
+        assertEquals(10, log.firstSeq());
+        assertEquals(0, log.snapshot().size());
+
+        // A segment's offsets outgrow their first array while earlier snapshots still read them.
+        MessageLog big = new MessageLog(dir, 100 * (12 + 1), 100 * (12 + 1), 60_000);
+        big.append(ByteString.copyFrom(new byte[]{0}), 0);
+        MessageLog.Snapshot early = big.snapshot();
+        for (int i = 1; i < 100; i++) {
+            big.append(ByteString.copyFrom(new byte[]{(byte) i}), i);
+        }
+        assertEquals(0, early.read(0).boxed.byteAt(0));
+        assertEquals(99, big.snapshot().read(99).boxed.byteAt(0));
+        big.clear();
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void relayCacheReplaysLocalFirst() throws Exception {
+        RelayCache cache = new RelayCache(3 * 101, 60_000);
+        ByteString tag = ByteString.copyFrom(new byte[Cabal.ROUTING_TAG_SIZE]);
+        Transport[] ts = new Transport[4];
+        for (int i = 0; i < ts.length; i++) {
+            byte[] body = new byte[100 - Cabal.ROUTING_TAG_SIZE];
+            body[0] = (byte) i;
+            ByteString frame = ByteString.copyFrom(new byte[]{MsgType.CABAL_MESSAGE_V2_VALUE}).concat(tag).concat(ByteString.copyFrom(body));
+            ts[i] = i == 2 ? Transport.local(ByteString.copyFrom(body), tag) : Transport.parse(i == 3 ? "b" : "a", frame);
+            cache.add(ts[i]);
+        }
+        // Only three fit, so ts[0] went; ts[2] is ours, so it goes first.
+        assertEquals(3 * 101, cache.bytes());
+        assertEquals(Arrays.asList(ts[2], ts[1], ts[3]), cache.replayFor("c", System.currentTimeMillis()));
+        // ...and what came from a comm isn't sent back to it.
+        assertEquals(Arrays.asList(ts[2], ts[3]), cache.replayFor("a", System.currentTimeMillis()));
+        assertEquals(0, cache.replayFor("c", System.currentTimeMillis() + 60_001).size());
+        assertEquals(0, cache.bytes());
+    }
+
+    @Test
+    public void idSketchFindsDifference() {
+        IdSketch ours = new IdSketch(30);
+        IdSketch theirs = new IdSketch(30);
+        List<Long> onlyOurs = new ArrayList<>();
+        List<Long> onlyTheirs = new ArrayList<>();
+        // A thousand shared keys cost nothing; the ten that differ are all recovered.
+        for (long i = 0; i < 1000; i++) {
+            long key = IdSketch.key(Util.transportID(ByteString.copyFromUtf8("shared " + i)));
+            ours.add(key);
+            theirs.add(key);
+        }
+        for (long i = 0; i < 10; i++) {
+            long key = IdSketch.key(Util.transportID(ByteString.copyFromUtf8("differs " + i)));
+            (i % 3 == 0 ? theirs : ours).add(key);
+            (i % 3 == 0 ? onlyTheirs : onlyOurs).add(key);
+        }
+        IdSketch received = IdSketch.parse(ByteString.copyFrom(new byte[]{1, 2}).concat(ByteString.copyFrom(theirs.toByteArray())), 2);
+        ours.subtract(received);
+        List<Long> gotOurs = new ArrayList<>();
+        List<Long> gotTheirs = new ArrayList<>();
+        assertTrue(ours.decode(gotOurs, gotTheirs));
+        Collections.sort(gotOurs);
+        Collections.sort(gotTheirs);
+        Collections.sort(onlyOurs);
+        Collections.sort(onlyTheirs);
+        assertEquals(onlyOurs, gotOurs);
+        assertEquals(onlyTheirs, gotTheirs);
+
+        // Far more differences than cells can't be decoded.
+        IdSketch small = new IdSketch(30);
+        for (long i = 0; i < 100; i++) small.add(i * 0x9e3779b97f4a7c15L);
+        assertFalse(small.decode(new ArrayList<Long>(), new ArrayList<Long>()));
+
+        // Requests for sketches no one could make are refused, not thrown on.
+        byte[] request = {MsgType.RECONCILE_V1_VALUE, 1, 0, 120};
+        assertEquals(120, CommCenter.sketchCells(ByteString.copyFrom(request)));
+        for (int cells : new int[]{0, 1, 31, 483, 0xffff}) {
+            request[2] = (byte) (cells >>> 8);
+            request[3] = (byte) cells;
+            assertEquals(-1, CommCenter.sketchCells(ByteString.copyFrom(request)));
+        }
+        assertEquals(-1, CommCenter.sketchCells(ByteString.copyFrom(request, 0, 3)));
+    }
+
+    @Test
+    public void gossipSuppressesRelays() {
+        Gossip gossip = new Gossip(new Gossip.Config(3, 0.25, 2, 50));
+        assertEquals(1, gossip.forwardProbability(3), 0);
+        assertEquals(0.5, gossip.forwardProbability(6), 0);
+        assertEquals(0.25, gossip.forwardProbability(100), 0);
+        assertEquals(25, gossip.delayMillis(0.5));
+
+        ByteString frame = ByteString.copyFrom(new byte[]{MsgType.CABAL_MESSAGE_V1_VALUE, 1, 2, 3});
+        Transport mine = Transport.local(frame.substring(1), null);
+        Transport once = Transport.parse("a", frame.concat(ByteString.copyFrom(new byte[]{1})));
+        Transport twice = Transport.parse("a", frame.concat(ByteString.copyFrom(new byte[]{2})));
+        gossip.heard(mine);
+        gossip.heard(once);
+        gossip.heard(twice);
+        gossip.heardAgain(twice.id());
+        // Ours always go; a relay heard twice is suppressed; one heard once goes if chance allows.
+        assertTrue(gossip.decide(mine, 100, 0.99));
+        assertFalse(gossip.decide(twice, 1, 0));
+        assertFalse(gossip.decide(once, 6, 0.5));
+        assertTrue(gossip.decide(once, 6, 0.49));
+        gossip.transmitted(6);
+        assertEquals(2, gossip.transmissionsPerTransport(), 0);
+        // With nowhere to send it, nothing goes.
+        assertFalse(gossip.decide(mine, 0, 0));
+
+        // Fragments are only ever suppressed by copies, never by chance.
+        Gossip adaptive = new Gossip(Gossip.ADAPTIVE);
+        ByteString fragmentFrame = ByteString.copyFrom(new byte[]{MsgType.CABAL_FRAGMENT_V1_VALUE})
+                .concat(ByteString.copyFrom(new byte[Cabal.ROUTING_TAG_SIZE]));
+        for (int i = 0; i < 100; i++) {
+            Transport fragment = Transport.parse("a", fragmentFrame.concat(ByteString.copyFrom(new byte[]{(byte) i})));
+            adaptive.heard(fragment);
+            if (i % 2 == 0) {
+                for (int j = 1; j < Gossip.ADAPTIVE.suppressAfterCopies; j++) adaptive.heardAgain(fragment.id());
+            }
+            assertEquals(i % 2 != 0, adaptive.decide(fragment, 100, 0.99));
+        }
+
+        KnownIDs known = new KnownIDs(2);
+        known.add(mine.id());
+        known.add(once.id());
+        known.add(twice.id());
+        assertFalse(known.contains(mine.id()));
+        assertTrue(known.contains(once.id()));
+        assertTrue(known.contains(twice.id()));
+    }
+
+    @Test
+    public void fragmentsReassemble() throws Exception {
+        byte[] key = new byte[CryptoProvider.KEY_BYTES];
+        Util.randomBytes(key);
+        byte[] big = new byte[2 * Fragments.DATA_BYTES + 1000];
+        Util.randomBytes(big);
+        ByteString box = ByteString.copyFrom(big);
+        assertTrue(Fragments.needed(box));
+        assertFalse(Fragments.needed(box.substring(0, 1000)));
+        List<ByteString> sealed = Fragments.split(box, key);
+        assertEquals(3, sealed.size());
+        for (ByteString f : sealed) {
+            assertTrue(1 + Cabal.ROUTING_TAG_SIZE + f.size() <= Fragments.MAX_FRAME_BYTES);
+        }
+        byte[] otherKey = new byte[CryptoProvider.KEY_BYTES];
+        assertNull(Fragments.open(sealed.get(0), otherKey));
+
+        File dir = Files.createTempDirectory("reassembler").toFile();
+        Reassembler r = new Reassembler(dir, 2, 60_000);
+        // Out of order, with a duplicate, and nothing left on disk once opened.
+        assertNull(r.add(Fragments.open(sealed.get(2), key), 0));
+        assertNull(r.add(Fragments.open(sealed.get(0), key), 1));
+        assertNull(r.add(Fragments.open(sealed.get(0), key), 2));
+        assertEquals(0, dir.list().length);
+        assertEquals(box, r.add(Fragments.open(sealed.get(1), key), 3));
+        assertEquals(0, r.pending());
+
+        // Boxes that stall are given up on.
+        assertNull(r.add(Fragments.open(sealed.get(0), key), 0));
+        assertNull(r.add(Fragments.open(Fragments.split(box, key).get(0), key), 60_001));
+        assertEquals(1, r.pending());
+        r.clear();
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void compressionOnlyWhenItHelps() {
+        byte[] key = new byte[CryptoProvider.KEY_BYTES];
+        Util.randomBytes(key);
+        TweetNaclFast.SecretBox box = new TweetNaclFast.SecretBox(key);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            text.append("are you there? see you tomorrow at the station, ").append(i).append(' ');
+        }
+        Payload p = Payload.newBuilder()
+                .setCleartextBroadcast(MessageContents.newBuilder().setText(text.toString()))
+                .build();
+        Identity ident = new Identity();
+        // Nothing is compressed before the flag day, but compressed boxes always open.
+        assertTrue(BoxCodec.boxIt(p, key, ident).size() > p.getSerializedSize());
+        byte[] serialized = p.toByteArray();
+        byte[] body = new byte[serialized.length];
+        int bodySize = Compression.compress(serialized, 0, serialized.length, body, 0);
+        assertTrue(bodySize > 0 && bodySize < serialized.length / 2);
+        byte[] toSign = new byte[1 + bodySize];
+        toSign[0] = (byte) BoxCodec.COMPRESSED;
+        System.arraycopy(body, 0, toSign, 1, bodySize);
+        byte[] signed = ident.sign(toSign);
+        byte[] plain = new byte[1 + Identity.PublicKey.SIZE + signed.length];
+        plain[0] = Identity.SIGNED;
+        ident.publicKey().identity().copyTo(plain, 1);
+        System.arraycopy(signed, 0, plain, 1 + Identity.PublicKey.SIZE, signed.length);
+        byte[] nonce = new byte[TweetNaclFast.SecretBox.nonceLength];
+        ByteString boxed = ByteString.copyFrom(nonce).concat(ByteString.copyFrom(box.box(plain, nonce)));
+        assertEquals(p, BoxCodec.unboxIt(boxed, key).payload);
+        assertEquals(p, Cabal.unboxIt(boxed, box).payload);
+        assertEquals(p, BoxCodec.reopen(boxed, key).payload);
+
+        // Short or random payloads go as they are.
+        byte[] out = new byte[4096];
+        assertEquals(-1, Compression.compress(new byte[10], 0, 10, out, 0));
+        byte[] random = new byte[1000];
+        Util.randomBytes(random);
+        assertEquals(-1, Compression.compress(random, 0, random.length, out, 0));
+        int n = Compression.compress(new byte[1000], 0, 1000, out, 0);
+        assertArrayEquals(new byte[1000], Compression.decompress(out, 0, n));
+        assertNull(Compression.decompress(out, 0, n - 1));
+        out[0] = 2;
+        assertNull(Compression.decompress(out, 0, n));
+
+        // A few bytes can't claim to inflate to megabytes.
+        byte[] bomb = {1, 0, 0x40, 0, 0, 0x03, 0};
+        assertNull(Compression.decompress(bomb, 0, bomb.length));
+    }
+
+    @Test
+    public void helloNegotiatesCommonMode() {
+        Capabilities theirs = Capabilities.parse(
+                new Capabilities(Capabilities.VERSION + 1, Capabilities.ROUTING_TAGS | 1L << 40, 16 * 1024).helloFrame());
+        Capabilities mode = Capabilities.OURS.common(theirs);
+        assertEquals(Capabilities.VERSION, mode.version);
+        assertTrue(mode.has(Capabilities.ROUTING_TAGS));
+        assertFalse(mode.has(Capabilities.FRAGMENTS));
+        assertEquals(16 * 1024, mode.maxFrameBytes);
+        assertNull(Capabilities.parse(ByteString.copyFrom(new byte[]{MsgType.HELLO_V1_VALUE, (byte) 0xff})));
+        assertNull(Capabilities.parse(CommCenter.KEEP_ALIVE_MESSAGE));
+
+        // Legacy peers get the same box untagged, and no fragments.
+        byte[] box = new byte[200];
+        Util.randomBytes(box);
+        ByteString tag = ByteString.copyFrom(new byte[Cabal.ROUTING_TAG_SIZE]);
+        Transport tagged = Transport.local(ByteString.copyFrom(box), tag);
+        Transport untagged = Transport.parse("peer", tagged.untaggedFrame());
+        assertEquals(MsgType.CABAL_MESSAGE_V1, untagged.type());
+        assertEquals(tagged.boxID(), untagged.boxID());
+
+        // A rewritten tag makes a different transport, so it can't take the genuine one's place.
+        byte[] frame = tagged.frame().toByteArray();
+        frame[1] ^= 1;
+        Transport retagged = Transport.parse("relay", ByteString.copyFrom(frame));
+        assertNotEquals(tagged.id(), retagged.id());
+        assertNotEquals(tagged.id(), untagged.id());
+        assertEquals(tagged.boxID(), retagged.boxID());
+        Transport whole = Transport.reassembled(ByteString.copyFrom(box), null);
+        assertEquals(whole.id(), whole.boxID());
+        assertNull(Transport.fragment(ByteString.copyFrom(box), tag).untaggedFrame());
+    }
+
+    @Test
+    public void tagsOnlyForLinksThatUnderstandThem() {
+        byte[] box = new byte[200];
+        Util.randomBytes(box);
+        ByteString tag = ByteString.copyFrom(new byte[Cabal.ROUTING_TAG_SIZE]);
+        Transport tagged = Transport.local(ByteString.copyFrom(box), tag);
+        Transport fragment = Transport.fragment(ByteString.copyFrom(box), tag);
+        // Links start out LEGACY until the peer's hello says otherwise.
+        ByteString legacy = CommCenter.frameFor(tagged, Capabilities.LEGACY);
+        assertEquals(MsgType.CABAL_MESSAGE_V1_VALUE, legacy.byteAt(0));
+        assertEquals(tagged.body(), legacy.substring(1));
+        assertNull(CommCenter.frameFor(fragment, Capabilities.LEGACY));
+        assertEquals(tagged.frame(), CommCenter.frameFor(tagged, Capabilities.OURS.common(Capabilities.OURS)));
+        assertEquals(fragment.frame(), CommCenter.frameFor(fragment, Capabilities.OURS));
+    }
+
+    @Test
+    public void batcherPacksFrames() {
+        final List<ByteString> sent = new ArrayList<>();
+        Batcher b = new Batcher(1000, 600, new Batcher.Sink() {
+            @Override
+            public void send(ByteString frame) {
+                sent.add(frame);
+            }
+        });
+        ByteString small = ByteString.copyFrom(new byte[]{MsgType.KEEPALIVE_MESSAGE_V1_VALUE});
+        ByteString mid = ByteString.copyFrom(new byte[300]);
+        assertTrue(b.add(small));
+        b.flush();
+        assertEquals(Collections.singletonList(small), sent);  // a batch of one goes as it is
+
+        assertTrue(b.add(mid));
+        assertFalse(b.add(small));
+        assertFalse(b.add(mid));  // past the flush threshold
+        assertEquals(2, sent.size());
+        assertEquals(Arrays.asList(mid, small, mid), Batcher.unpack(sent.get(1)));
+        assertFalse(b.add(ByteString.copyFrom(new byte[2000])));  // too big to batch
+        assertEquals(3, sent.size());
+        assertNull(Batcher.unpack(sent.get(1).substring(0, sent.get(1).size() - 1)));
+    }
+
+    @Test
+    public void keepAlivesOnlyForQuietLinks() {
+        KeepAlives k = new KeepAlives(70_000, 17_500, 0);
+        assertEquals(70_000, k.delayMillis(0));
+        k.added("a", 0);
+        k.added("b", 10_000);
+        k.added("c", 30_000);
+        assertEquals(70_000, k.delayMillis(0));
+        assertTrue(k.due(50_000).isEmpty());
+        // At the first deadline, b is due soon enough to go with a; c is not.
+        List<String> due = k.due(70_000);
+        Collections.sort(due);
+        assertEquals(Arrays.asList("a", "b"), due);
+        k.sent("a", 70_000);
+        k.sent("b", 70_000);
+        // c keeps carrying traffic, so it never needs one.
+        k.sent("c", 90_000);
+        assertEquals(50_000, k.delayMillis(90_000));
+        k.removed("c");
+        k.sent("c", 100_000);
+        assertEquals(2, k.due(140_000).size());
+        assertEquals(0, k.wakeupsSaved(140_000));
+        assertEquals(5, k.wakeupsSaved(7 * 70_000));
+    }
+
+    @Test
+    public void keepAlivesWaitForPendingWrites() {
+        KeepAlives k = new KeepAlives(70_000, 17_500, 0);
+        k.added("slow", 0);
+        k.added("dead", 0);
+        assertEquals(2, k.due(70_000).size());
+        // Neither has written its keepalive yet, so neither is due again straight away.
+        assertTrue(k.due(70_001).isEmpty());
+        assertEquals(70_000, k.delayMillis(70_000));
+        // The slow one's lands late, and counts from then; the dead one's never does.
+        k.sent("slow", 80_000);
+        assertEquals(60_000, k.delayMillis(80_000));
+        assertEquals(Collections.singletonList("dead"), k.due(130_000));
+        // Which then gets one a full interval later, not one per wakeup.
+        k.removed("slow");
+        assertEquals(130_000 + 70_000 - 135_000, k.delayMillis(135_000));
+    }
 }